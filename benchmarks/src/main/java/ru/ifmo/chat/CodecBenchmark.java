@@ -0,0 +1,52 @@
+package ru.ifmo.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding a {@link Message} into a frame and of decoding it back by each of the {@link Codec}-s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    @Param({"SERIALIZED", "BINARY", "COMPRESSED"})
+    public Codec codec;
+
+    /**
+     * Length of the content of the {@link Message}, in characters.
+     */
+    @Param({"16", "1024"})
+    public int length;
+
+    private Message message;
+    private byte[] frame;
+    /**
+     * Position of the payload in the frame: the {@link Codec#SERIALIZED} bytes have no header.
+     */
+    private int offset;
+
+    @Setup
+    public void setup() throws IOException {
+        message = new Message("benchmark", Message.DEFAULT_ROOM, "x".repeat(length));
+        message.setId(42);
+        message.setSent();
+        frame = codec.encode(message);
+        offset = codec == Codec.SERIALIZED ? 0 : Protocol.HEADER_LENGTH;
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return codec.decode(frame, offset, frame.length - offset);
+    }
+}
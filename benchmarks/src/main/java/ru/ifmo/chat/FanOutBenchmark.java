@@ -0,0 +1,77 @@
+package ru.ifmo.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of distributing a single text to every member of its room by {@link Server#distribute}, depending on the
+ * number of members. Each text is wrapped anew, so the cost includes encoding it once per {@link Codec}.
+ * Recipients write frames out as soon as they are queued, so their outbound queues never fill up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    private Server server;
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty("pipeline.shards", "1");
+        settings.setProperty("pipeline.capacity", String.valueOf(recipients + 1));
+        // no indexer is running to take the texts
+        settings.setProperty("search.size", "0");
+        server = new Server(settings);
+        server.configure();
+        for (int i = 0; i < recipients; i++) {
+            DiscardingConnection connection = new DiscardingConnection();
+            connection.client = server.register(UUID.randomUUID(), connection);
+            server.distribute(server.new MessageEntity(connection.client,
+                    Message.join("recipient" + i, Message.DEFAULT_ROOM)));
+        }
+        message = new Message("benchmark", Message.DEFAULT_ROOM, "Hello, everyone in the room!");
+        message.setId(42);
+        message.setSent();
+    }
+
+    @Benchmark
+    public void distribute() throws Exception {
+        server.distribute(server.new MessageEntity(null, message));
+    }
+
+    /**
+     * {@link Connection} writing frames out instantly by throwing them away.
+     */
+    private static class DiscardingConnection implements Connection {
+        private Server.ClientEntity client;
+
+        @Override
+        public Codec codec() {
+            return Codec.BINARY;
+        }
+
+        @Override
+        public void flush() {
+            client.drain();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String address() {
+            return "benchmark";
+        }
+    }
+}
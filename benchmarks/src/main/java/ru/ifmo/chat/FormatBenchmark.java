@@ -0,0 +1,42 @@
+package ru.ifmo.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of displaying a {@link Message}: the whole of {@link Message#toString()} on first display and once cached, and
+ * the timestamp formatting by {@link Message#FORMAT} alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+    private Message message;
+
+    @Setup
+    public void setup() {
+        message = new Message("benchmark", "dev", "Hello, everyone in the room!");
+        message.setSent();
+    }
+
+    @Benchmark
+    public String toText() {
+        return new Message(message.getId(), message.getKind(), message.getSender(), message.getRoom(),
+                message.getMessage(), message.getSent(), message.getReceived()).toString();
+    }
+
+    @Benchmark
+    public String toTextCached() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public String formatSent() {
+        return Message.FORMAT.format(Instant.ofEpochMilli(message.getSent()));
+    }
+}
@@ -0,0 +1,53 @@
+package ru.ifmo.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the {@link Pipeline} the {@link Server} keeps its message queue in, contended by several Threads.
+ * Each Thread puts an element with its own key and then takes one from the same shard, so a shard never runs dry and
+ * no Thread is left waiting at the end of an iteration. With a single shard all Threads contend for one queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    @Param({"1", "4"})
+    public int shards;
+
+    private Pipeline<Object> pipeline;
+    private final AtomicInteger keys = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        pipeline = new Pipeline<>(shards, 65536);
+    }
+
+    /**
+     * Key and shard of a single benchmark Thread.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        int key;
+        int shard;
+        final Object element = new Object();
+
+        @Setup
+        public void setup(PipelineBenchmark benchmark) {
+            key = benchmark.keys.getAndIncrement();
+            shard = benchmark.pipeline.shard(key);
+        }
+    }
+
+    @Benchmark
+    public Object putTake(Producer producer) throws InterruptedException {
+        pipeline.put(producer.key, producer.element);
+        return pipeline.take(producer.shard);
+    }
+}
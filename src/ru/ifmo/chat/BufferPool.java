@@ -0,0 +1,267 @@
+package ru.ifmo.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of off-heap buffers the frames are encoded into and written from, so the steady flow of texts neither leaves
+ * a byte array per frame to the garbage collector nor has the JDK copy heap frames into temporary direct buffers on
+ * every write.
+ * <p>
+ * Buffers are lent out as {@link BufferPool.Chunk}-s of size classes, powers of two from {@link BufferPool#MIN_CHUNK}
+ * up to {@link BufferPool#MAX_CHUNK} bytes. Each size class carves its chunks out of direct slabs of
+ * {@link BufferPool#SLAB_SIZE} bytes allocated on demand, until the slabs of all the classes take up the capacity of
+ * the pool. Slabs are never given back. A request for more than the largest class, or finding the capacity taken up,
+ * is served by a heap buffer of its own, counted as unpooled.
+ * <p>
+ * A {@link BufferPool.Chunk} is reference counted: it is lent out holding a single reference, each holder sharing it,
+ * e.g. the outbound queue of every recipient of a text, retains it and releases it once done, and the last release
+ * gives it back to its size class. Holders never move the position of a shared buffer. A {@link BufferPool.Chunk}
+ * lost without being released is found once it is garbage collected: it is counted as a leak and its memory goes back
+ * to the pool. Thread-safe.
+ */
+class BufferPool {
+    /**
+     * Sizes of the smallest and of the largest chunks, in bytes.
+     */
+    static final int MIN_CHUNK = 256;
+    static final int MAX_CHUNK = 64 * 1024;
+    /**
+     * Size of a slab the chunks are carved out of, in bytes.
+     */
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * Finds the {@link BufferPool.Chunk}-s lost without being released.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final long capacity;
+    private final SizeClass[] classes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong lent = new AtomicLong();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * @param capacity number of bytes the slabs may take up in total. 0 disables pooling: every buffer is unpooled.
+     * @throws IllegalArgumentException in case the capacity is negative.
+     */
+    BufferPool(long capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("buffer pool capacity must not be negative");
+        this.capacity = capacity;
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(MAX_CHUNK / MIN_CHUNK) + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(MIN_CHUNK << i);
+        }
+    }
+
+    /**
+     * Lends out a buffer of the given size at least, cleared.
+     *
+     * @return the {@link BufferPool.Chunk} holding a single reference.
+     */
+    Chunk acquire(int size) {
+        acquired.increment();
+        if (size <= MAX_CHUNK) {
+            int index = 0;
+            while (MIN_CHUNK << index < size) index++;
+            Chunk chunk = classes[index].take();
+            if (chunk != null) {
+                lent.incrementAndGet();
+                chunk.references.set(1);
+                return chunk;
+            }
+        }
+        unpooled.increment();
+        return new Chunk(null, ByteBuffer.allocate(size), 1);
+    }
+
+    /**
+     * Number of bytes taken up by the slabs.
+     */
+    long reserved() {
+        return reserved.get();
+    }
+
+    /**
+     * Number of pooled {@link BufferPool.Chunk}-s lent out and not given back yet.
+     */
+    long lent() {
+        return lent.get();
+    }
+
+    /**
+     * Number of buffers requested since the start, and of those served by unpooled heap buffers.
+     */
+    long acquired() {
+        return acquired.sum();
+    }
+
+    long unpooled() {
+        return unpooled.sum();
+    }
+
+    /**
+     * Number of {@link BufferPool.Chunk}-s lost without being released, found so far.
+     */
+    long leaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * Chunks of a single size, kept in a stack of those not lent out.
+     */
+    private class SizeClass {
+        private final int size;
+        private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Takes a chunk not lent out, carving a new slab if there are none.
+         *
+         * @return the chunk or null if the capacity of the pool is taken up.
+         */
+        synchronized Chunk take() {
+            if (free.isEmpty() && !carve()) return null;
+            return free.pop();
+        }
+
+        synchronized void give(Chunk chunk) {
+            chunk.memory.clear();
+            free.push(chunk);
+        }
+
+        private boolean carve() {
+            if (reserved.addAndGet(SLAB_SIZE) > capacity) {
+                reserved.addAndGet(-SLAB_SIZE);
+                return false;
+            }
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            for (int offset = 0; offset < SLAB_SIZE; offset += size) {
+                free.push(track(slab.slice(offset, size)));
+            }
+            return true;
+        }
+
+        /**
+         * Wraps the memory into a new chunk to be found once garbage collected without being given back.
+         */
+        private Chunk track(ByteBuffer memory) {
+            Chunk chunk = new Chunk(this, memory, 0);
+            CLEANER.register(chunk, new Leak(this, memory));
+            return chunk;
+        }
+
+        /**
+         * Takes the memory of a lost chunk back. Called by the {@link BufferPool#CLEANER}.
+         */
+        synchronized void recover(ByteBuffer memory) {
+            leaks.increment();
+            lent.decrementAndGet();
+            memory.clear();
+            free.push(track(memory));
+        }
+    }
+
+    /**
+     * Cleaning action of a chunk: as the free chunks are referenced by their size class, a chunk becoming unreachable
+     * has been lent out and lost. Holds the memory of the chunk rather than the chunk itself.
+     */
+    private record Leak(SizeClass owner, ByteBuffer memory) implements Runnable {
+        @Override
+        public void run() {
+            owner.recover(memory);
+        }
+    }
+
+    /**
+     * Reference counted buffer lent out by the {@link BufferPool}.
+     */
+    final class Chunk {
+        /**
+         * Size class the chunk goes back to, or null if it is unpooled.
+         */
+        private final SizeClass owner;
+        private final ByteBuffer memory;
+        private final AtomicInteger references;
+
+        private Chunk(SizeClass owner, ByteBuffer memory, int references) {
+            this.owner = owner;
+            this.memory = memory;
+            this.references = new AtomicInteger(references);
+        }
+
+        /**
+         * Retrieves the buffer. The one who has acquired the chunk fills the buffer and flips it; once shared, the
+         * content lies between 0 and the limit of the buffer, and the holders read it by absolute positions only.
+         */
+        ByteBuffer buffer() {
+            return memory;
+        }
+
+        /**
+         * Length of the content of a shared buffer.
+         */
+        int length() {
+            return memory.limit();
+        }
+
+        /**
+         * Adds a holder of the chunk.
+         *
+         * @return this chunk.
+         * @throws IllegalStateException in case the chunk has already been given back. The count is left intact.
+         */
+        Chunk retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) throw new IllegalStateException("buffer already released");
+            } while (!references.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * Drops a holder of the chunk, giving the chunk back to the pool once no holders are left.
+         *
+         * @throws IllegalStateException in case the chunk has already been given back. The count is left intact.
+         */
+        void release() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) throw new IllegalStateException("buffer released twice");
+            } while (!references.compareAndSet(count, count - 1));
+            if (count > 1 || owner == null) return;
+            lent.decrementAndGet();
+            owner.give(this);
+        }
+
+        /**
+         * Writes the content of a shared buffer to the stream, through the scratch array unless the buffer is on the
+         * heap.
+         */
+        void writeTo(OutputStream out, byte[] scratch) throws IOException {
+            if (memory.hasArray()) {
+                out.write(memory.array(), memory.arrayOffset(), memory.limit());
+                return;
+            }
+            for (int offset = 0; offset < memory.limit(); offset += scratch.length) {
+                int length = Math.min(scratch.length, memory.limit() - offset);
+                memory.get(offset, scratch, 0, length);
+                out.write(scratch, 0, length);
+            }
+        }
+    }
+}
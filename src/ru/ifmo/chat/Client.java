@@ -3,12 +3,18 @@ package ru.ifmo.chat;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
@@ -31,6 +37,18 @@ public class Client {
      */
     private static final String[] MANDATORY_SETTINGS = {"server.ip", "server.port", "client.senderName"};
 
+    /**
+     * Delays between attempts to reconnect to the {@link Server}, in milliseconds: doubled after every failure up to
+     * the maximum. Each pause is picked at random up to the current delay, so the {@link Client}-s dropped together,
+     * e.g. by a restarting {@link Server}, do not all come back at once.
+     */
+    private static final long MIN_RECONNECT_DELAY = 250;
+    private static final long MAX_RECONNECT_DELAY = 10000;
+    /**
+     * Maximal number of texts waiting to be sent or to be acknowledged by the {@link Server}.
+     */
+    private static final int OUTBOX_CAPACITY = 1024;
+
     // Setting up the mandatory config file in case it does not exist for some reason.
     static {
         if (!Files.exists(SETTINGS)) {
@@ -53,6 +71,48 @@ public class Client {
      */
     private final UUID uuid;
 
+    /**
+     * Identifier of the oldest {@link Message} received in each room. Older history of the room is requested from
+     * the {@link Server} as preceding it.
+     */
+    private final Map<String, Long> oldest = new ConcurrentHashMap<>();
+
+    /**
+     * Identifier of the most recent text received in each room, or the one a {@link Message.Kind#RESUME} notice told
+     * to resume after. Handed to the {@link Server} on reconnecting, by the hello for {@link Message#DEFAULT_ROOM}
+     * and by the requests to join the other rooms, so it replays only the texts missed meanwhile. Kept per room, as
+     * the texts of different rooms arrive in no particular order of their identifiers.
+     */
+    private final Map<String, Long> latest = new ConcurrentHashMap<>();
+
+    /**
+     * Rooms joined besides {@link Message#DEFAULT_ROOM}, joined again once reconnected.
+     */
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Texts typed while disconnected, and texts sent but not acknowledged by the {@link Server} yet, by the
+     * identifiers given to them. Sent once reconnected; the {@link Server} drops those it has already got. Holds up to
+     * {@link Client#OUTBOX_CAPACITY} texts, the oldest being forgotten beyond it. Texts are put into the outbox and
+     * written to the {@link Server} synchronizing on it, so the texts sent once reconnected keep their order with the
+     * texts typed meanwhile.
+     */
+    private final ConcurrentSkipListMap<Long, Message> outbox = new ConcurrentSkipListMap<>();
+
+    private final WorkerPool workers = new WorkerPool("client", WorkerPool.Mode.PLATFORM, 0);
+
+    private InetSocketAddress endpoint;
+
+    /**
+     * Current connection to the {@link Server}. Null while reconnecting; replaced once reconnected.
+     */
+    private volatile Session session;
+
+    /**
+     * Set once the user is done, so a closed connection is not reconnected anymore.
+     */
+    private volatile boolean closing;
+
     public Client() {
         this.uuid = UUID.randomUUID();
     }
@@ -109,10 +169,12 @@ public class Client {
             e.printStackTrace();
             return;
         }
-        InetSocketAddress endpoint = new InetSocketAddress(properties.getProperty("server.ip"),
+        endpoint = new InetSocketAddress(properties.getProperty("server.ip"),
                 Integer.parseInt(properties.getProperty("server.port")));
         try {
-            connect(endpoint);
+            session = connect();
+            workers.start(new Sender());
+            workers.start(new Receiver(session));
         } catch (IOException e) {
             System.out.println("Failed to connect to Server at " + endpoint + "\nCheck the connection settings in " +
                                SETTINGS.toAbsolutePath());
@@ -121,88 +183,332 @@ public class Client {
     }
 
     /**
-     * Tries to connect to a specified {@code endpoint} taken from config and describing a {@link Server} to connect.
-     * In success, introduces itself to the {@link Server} and Starts up one Thread each for sending and
-     * receiving {@link Message}-s.
+     * Tries to connect to the {@link Client#endpoint} taken from config and describing a {@link Server} to connect.
+     * In success, introduces itself to the {@link Server} by its name and the identifier to resume
+     * {@link Message#DEFAULT_ROOM} after, if any.
      */
-    private void connect(InetSocketAddress endpoint) throws IOException {
+    private Session connect() throws IOException {
         Socket socket = new Socket();
-        socket.connect(endpoint);
-        socket.getOutputStream().write(uuid.toString().getBytes(StandardCharsets.UTF_8));
-        new Thread(new Sender(socket)).start();
-        new Thread(new Receiver(socket)).start();
+        try {
+            socket.connect(endpoint);
+            Set<Protocol.Capability> capabilities = EnumSet.allOf(Protocol.Capability.class);
+            if (!Boolean.parseBoolean(properties.getProperty("client.compression", "true").trim())) {
+                capabilities.remove(Protocol.Capability.COMPRESSION);
+            }
+            Protocol.Handshake handshake = Protocol.hello(new DataOutputStream(socket.getOutputStream()),
+                    new DataInputStream(socket.getInputStream()), uuid, properties.getProperty("client.senderName"),
+                    capabilities, latest.getOrDefault(Message.DEFAULT_ROOM, 0L));
+            return new Session(socket, handshake.codec(), handshake.agreed().contains(Protocol.Capability.ACKS));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reconnects to the {@link Server} until the user is done, pausing between the attempts as told by
+     * {@link Client#MIN_RECONNECT_DELAY} and {@link Client#MAX_RECONNECT_DELAY}. Once reconnected joins the rooms
+     * again, each by the identifier of the most recent text of the room received, so the {@link Server} replays only
+     * the texts missed meanwhile. Then sends the texts of the {@link Client#outbox} and starts up a {@link Receiver}
+     * for the new {@link Session}.
+     */
+    private void reconnect() throws InterruptedException {
+        long delay = MIN_RECONNECT_DELAY;
+        while (!closing) {
+            TimeUnit.MILLISECONDS.sleep(1 + ThreadLocalRandom.current().nextLong(delay));
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            Session reconnected;
+            try {
+                reconnected = connect();
+            } catch (IOException e) {
+                continue;
+            }
+            int pending;
+            synchronized (outbox) {
+                pending = outbox.size();
+                try {
+                    for (String room : rooms) {
+                        Message join = Message.join(properties.getProperty("client.senderName"), room);
+                        join.setId(latest.getOrDefault(room, 0L));
+                        reconnected.write(join);
+                    }
+                    for (Message message : outbox.values()) {
+                        reconnected.write(message);
+                    }
+                } catch (IOException e) {
+                    reconnected.close();
+                    continue;
+                }
+                // a Server not acknowledging has got the texts as well as it ever will
+                if (!reconnected.acks) outbox.clear();
+                session = reconnected;
+            }
+            workers.start(new Receiver(reconnected));
+            System.out.println("reconnected" + (pending > 0 ? ", " + pending + " texts sent" : ""));
+            return;
+        }
+    }
+
+    /**
+     * A single connection to the {@link Server}. Both the {@link Sender} and the {@link Receiver} answering heartbeats
+     * write to the {@link Server} through the same stream, synchronizing on it.
+     */
+    private static class Session {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final Codec codec;
+        /**
+         * Whether {@link Protocol.Capability#ACKS} is agreed with the {@link Server}.
+         */
+        private final boolean acks;
+        /**
+         * Set once the {@link Server} has told it is going away, so the {@link Client} is to reconnect.
+         */
+        private volatile boolean resuming;
+
+        Session(Socket socket, Codec codec, boolean acks) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.codec = codec;
+            this.acks = acks;
+        }
+
+        void write(Message message) throws IOException {
+            synchronized (out) {
+                Protocol.write(out, codec, message);
+            }
+        }
+
+        /**
+         * Closes the connection, which makes its {@link Receiver} reconnect unless the user is done.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
     }
 
     /**
      * Thread task to infinitely receive {@link Message}-s from {@link Server} and print them out in the system
-     * console.
+     * console. Answers heartbeats of the {@link Server} without printing them and prints the texts found by a search
+     * apart from the texts posted meanwhile. Takes the acknowledgements of the texts sent off the
+     * {@link Client#outbox}, and acknowledges the texts received once per burst. Once the connection is closed, e.g.
+     * as the {@link Server} is going away, reconnects unless the user is done.
      */
-    @SuppressWarnings("InnerClassMayBeStatic")
     private class Receiver extends Worker {
-        private final Socket socket;
-        private ObjectInputStream in;
+        private final Session session;
+        private DataInputStream in;
+        /**
+         * Number of the texts found by the search being answered.
+         */
+        private int found;
+        /**
+         * Delivery cursor: number of the texts received over the connection, and the one last acknowledged to the
+         * {@link Server}.
+         */
+        private long received;
+        private long acknowledged;
 
-        public Receiver(Socket socket) {
-            this.socket = Objects.requireNonNull(socket);
+        public Receiver(Session session) {
+            this.session = Objects.requireNonNull(session);
         }
 
         @Override
         protected void init() throws IOException {
-            in = new ObjectInputStream(socket.getInputStream());
+            in = new DataInputStream(new BufferedInputStream(session.socket.getInputStream()));
         }
 
         @Override
-        protected void loop() throws IOException {
-            Message received = null;
+        protected void loop() throws IOException, InterruptedException {
+            Message message;
             try {
-                received = (Message) in.readObject();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+                message = Protocol.read(in, session.codec);
+            } catch (IOException e) {
+                session.close();
+                if (!closing) {
+                    synchronized (outbox) {
+                        if (Client.this.session == session) Client.this.session = null;
+                    }
+                    System.out.println(session.resuming ? "server is restarting, reconnecting..." :
+                            "lost connection to server, reconnecting...");
+                    reconnect();
+                }
+                shutdown();
+                return;
+            }
+            switch (message.getKind()) {
+                case PING:
+                    session.write(Message.pong());
+                    break;
+                case PONG:
+                    break;
+                case RESUME:
+                    session.resuming = true;
+                    // the notice follows every text of the rooms up to its identifier
+                    latest.merge(Message.DEFAULT_ROOM, message.getId(), Math::max);
+                    for (String room : rooms) latest.merge(room, message.getId(), Math::max);
+                    break;
+                case ACK:
+                    outbox.headMap(message.getId(), true).clear();
+                    break;
+                case SEARCH:
+                    if (message.getId() > 0) {
+                        found++;
+                        System.out.println("found: " + message);
+                    } else {
+                        System.out.println("search: " + found + " found");
+                        found = 0;
+                    }
+                    break;
+                default:
+                    if (message.getId() > 0) {
+                        received++;
+                        if (message.getKind() == Message.Kind.TEXT) {
+                            oldest.merge(message.getRoom(), message.getId(), Math::min);
+                            latest.merge(message.getRoom(), message.getId(), Math::max);
+                        }
+                    }
+                    System.out.println(message);
+            }
+            // the burst may end with anything, not only with a text
+            if (session.acks && received > acknowledged && in.available() == 0) {
+                session.write(Message.ack(received));
+                acknowledged = received;
             }
-            System.out.println(received);
         }
 
         @Override
-        protected void stop() throws IOException {
-            socket.close();
+        protected void stop() {
+            session.close();
         }
     }
 
     /**
      * Thread task to infinitely wait for user input. The inputted string is wrapped into {@link Message} object and
      * sent to {@link Server}.
+     * Texts are numbered and kept in the {@link Client#outbox} until the {@link Server} acknowledges them; texts typed
+     * while reconnecting wait there to be sent once reconnected. Other requests typed meanwhile are dropped, but the
+     * rooms joined or left are taken into account on reconnecting. Once the input ends, the {@link Client} is done.
+     * Texts are posted to the current room, which is {@link Message#DEFAULT_ROOM} at start. The user may input
+     * commands:
+     * <ul>
+     * <li>"/join room" to join the room and to make it the current one;</li>
+     * <li>"/leave room" to leave the room (the current room falls back to {@link Message#DEFAULT_ROOM});</li>
+     * <li>"/msg name text" to send the text to the user of the name only, to all of the user's devices;</li>
+     * <li>"/search words" to find the recent texts of the rooms joined containing all the words; "from:name" narrows
+     * the search to the texts of the user, "after:time" and "before:time" to the texts posted within the time range,
+     * the time being a date like 2024-01-31 or a date and time like 2024-01-31T18:00;</li>
+     * <li>"/history" to request a page of the current room's history older than any {@link Message} received.</li>
+     * </ul>
      */
     private class Sender extends Worker {
-        private final Socket socket;
         private final String name = properties.getProperty("client.senderName");
         Scanner scanner = new Scanner(System.in);
-        private ObjectOutputStream out;
-
-        public Sender(Socket socket) {
-            this.socket = Objects.requireNonNull(socket);
-        }
+        private String room = Message.DEFAULT_ROOM;
+        /**
+         * Identifier given to the last text sent.
+         */
+        private long sequence;
 
         @Override
-        protected void init() throws IOException {
-            out = new ObjectOutputStream(socket.getOutputStream());
+        protected void init() {
         }
 
         @Override
-        protected void loop() throws IOException {
-            System.out.print(name + ": ");
-            String contents = scanner.nextLine();
-            Message message = new Message(name, contents);
+        protected void loop() {
+            System.out.print(Message.DEFAULT_ROOM.equals(room) ? name + ": " : "[" + room + "] " + name + ": ");
+            if (!scanner.hasNextLine()) {
+                closing = true;
+                shutdown();
+                return;
+            }
+            Message message = compose(scanner.nextLine());
             message.setSent();
-            if (socket.isConnected() && socket.isBound() && !socket.isClosed() && !socket.isOutputShutdown()) {
-                out.writeObject(message);
-            } else {
-                System.out.println("lost connection to server");
+            boolean text = message.getKind() == Message.Kind.TEXT || message.getKind() == Message.Kind.DIRECT;
+            synchronized (outbox) {
+                if (text) {
+                    message.setId(++sequence);
+                    outbox.put(sequence, message);
+                    if (outbox.size() > OUTBOX_CAPACITY) outbox.pollFirstEntry();
+                }
+                Session current = session;
+                if (current == null) {
+                    System.out.println(text ? "not connected, the text is sent once reconnected" :
+                            "not connected to server");
+                    return;
+                }
+                try {
+                    current.write(message);
+                    if (text && !current.acks) outbox.remove(sequence);
+                } catch (IOException e) {
+                    // the Receiver notices the closed connection and reconnects
+                    current.close();
+                }
+            }
+        }
+
+        /**
+         * Wraps the inputted string into a {@link Message}, recognizing commands.
+         */
+        private Message compose(String contents) {
+            if (contents.startsWith("/join ") && !contents.substring(6).isBlank()) {
+                room = contents.substring(6).trim();
+                if (!Message.DEFAULT_ROOM.equals(room)) rooms.add(room);
+                return Message.join(name, room);
+            }
+            if (contents.startsWith("/leave ") && !contents.substring(7).isBlank()) {
+                String left = contents.substring(7).trim();
+                if (left.equals(room)) room = Message.DEFAULT_ROOM;
+                rooms.remove(left);
+                latest.remove(left);
+                return Message.leave(name, left);
+            }
+            if (contents.startsWith("/msg ")) {
+                String[] parts = contents.substring(5).trim().split("\\s+", 2);
+                if (parts.length == 2 && !parts[0].isEmpty()) return Message.direct(name, parts[0], parts[1]);
+            }
+            if (contents.startsWith("/search ") && !contents.substring(8).isBlank()) {
+                return Message.search(name, query(contents.substring(8)));
+            }
+            if (contents.trim().equals("/history")) {
+                return Message.history(name, room, oldest.getOrDefault(room, 0L));
             }
+            return new Message(name, room, contents);
+        }
+
+        /**
+         * Turns the dates and times of the search into epoch milliseconds, as expected by the {@link Server}. A date
+         * alone stands for the whole day.
+         */
+        private String query(String search) {
+            StringJoiner query = new StringJoiner(" ");
+            for (String term : search.trim().split("\\s+")) {
+                boolean after = term.startsWith("after:");
+                if (after || term.startsWith("before:")) {
+                    String time = term.substring(term.indexOf(':') + 1);
+                    try {
+                        ZoneId zone = ZoneId.systemDefault();
+                        long millis = time.contains("T") ?
+                                LocalDateTime.parse(time).atZone(zone).toInstant().toEpochMilli() : after ?
+                                LocalDate.parse(time).atStartOfDay(zone).toInstant().toEpochMilli() :
+                                LocalDate.parse(time).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+                        term = (after ? "after:" : "before:") + millis;
+                    } catch (DateTimeParseException e) {
+                        // left as is, e.g. epoch milliseconds
+                    }
+                }
+                query.add(term);
+            }
+            return query.toString();
         }
 
         @Override
-        protected void stop() throws IOException {
-            socket.close();
+        protected void stop() {
+            Session current = session;
+            if (current != null) current.close();
         }
     }
 }
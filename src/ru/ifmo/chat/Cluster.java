@@ -0,0 +1,437 @@
+package ru.ifmo.chat;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster of {@link Server}-s sharing their rooms, so a {@link Client} connected to any node receives the texts posted
+ * by {@link Client}-s of all nodes.
+ * <p>
+ * The nodes are listed in the same order in the settings of every node, each node knowing its own index in the list.
+ * Every node keeps a {@link Cluster.Link} to each of the other nodes and relays the texts posted by its own
+ * {@link Client}-s over it; relayed texts are distributed, remembered and logged by the receiving node as if they were
+ * posted there, but are never relayed further. Each {@link Cluster.Link} is a single connection written in batches:
+ * texts queued while a batch is being written go together into the next one.
+ * <p>
+ * Identifiers of texts are unique across the cluster: a node only assigns identifiers equal to its index modulo the
+ * number of nodes. Relayed identifiers push the sequence of the receiving node forward, so identifiers keep growing
+ * along the history of a room whichever node a text was posted to.
+ * A batch interrupted by a broken connection is written again once the {@link Cluster.Link} is restored, so a text may
+ * arrive twice; the receiving node drops the identifiers it has recently seen.
+ */
+class Cluster {
+    /**
+     * Timeout of connecting to another node, in milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+    /**
+     * Timeout of reading the index another node introduces itself by once its link is accepted, in milliseconds.
+     */
+    private static final int INTRODUCTION_TIMEOUT = 5000;
+    /**
+     * Delays between attempts to connect to another node, in milliseconds: doubled after every failure up to the
+     * maximum.
+     */
+    private static final long MIN_RETRY_DELAY = 100;
+    private static final long MAX_RETRY_DELAY = 5000;
+    /**
+     * Size of the buffer collecting a batch of frames written to another node.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Server server;
+    private final List<InetSocketAddress> nodes;
+    private final int node;
+    private final Link[] links;
+    private final int capacity;
+    private final int batchSize;
+    private final long linger;
+    /**
+     * Identifiers of the texts recently relayed to this node, the oldest first.
+     */
+    private final Set<Long> seen;
+    private WorkerPool pool;
+
+    /**
+     * @param server    the {@link Server} to hand the relayed texts over to.
+     * @param nodes     addresses of all the nodes, this one included, to accept and to open links at.
+     * @param node      index of this node in the list.
+     * @param capacity  number of texts queued for another node beyond which the oldest ones are dropped.
+     * @param batchSize maximal number of texts written to another node at once.
+     * @param linger    how long to wait for more texts to join a batch, in nanoseconds.
+     * @param window    number of the most recent identifiers remembered to drop the texts relayed twice.
+     * @throws IllegalArgumentException in case a parameter is out of its bounds.
+     */
+    Cluster(Server server, List<InetSocketAddress> nodes, int node, int capacity, int batchSize, long linger,
+            int window) {
+        if (node < 0 || node >= nodes.size()) throw new IllegalArgumentException("cluster.node is out of the list");
+        if (capacity <= 0 || batchSize <= 0 || window <= 0) {
+            throw new IllegalArgumentException("cluster capacity, batch size and window must be positive");
+        }
+        this.server = Objects.requireNonNull(server);
+        this.nodes = List.copyOf(nodes);
+        this.node = node;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.linger = linger;
+        this.seen = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > window;
+            }
+        }));
+        this.links = new Link[nodes.size()];
+        for (int i = 0; i < links.length; i++) {
+            if (i != node) links[i] = new Link(i);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of "host:port" addresses, as set in settings files.
+     *
+     * @throws IllegalArgumentException in case an address is malformed.
+     */
+    static List<InetSocketAddress> parse(String list) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String address : list.split(",")) {
+            address = address.trim();
+            int separator = address.lastIndexOf(':');
+            if (separator <= 0) throw new IllegalArgumentException("expected host:port address: " + address);
+            nodes.add(new InetSocketAddress(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1))));
+        }
+        return nodes;
+    }
+
+    /**
+     * Makes up the identifier of a text posted to this node from the next number of the node's sequence.
+     */
+    long id(long sequence) {
+        return sequence * nodes.size() + node;
+    }
+
+    /**
+     * Retrieves the number of the sequence the identifier was made up from by {@link Cluster#id(long)} of any node.
+     */
+    long sequence(long id) {
+        return id / nodes.size();
+    }
+
+    /**
+     * Starts accepting links from the other nodes and opening links to them.
+     */
+    void start(WorkerPool pool) {
+        this.pool = pool;
+        pool.start(new Acceptor());
+        for (Link link : links) {
+            if (link != null) pool.start(link);
+        }
+    }
+
+    /**
+     * Queues the text posted to this node for all the other nodes.
+     *
+     * @param frame the text encoded by {@link Codec#BINARY}, retained by every link until written to its node.
+     */
+    void relay(BufferPool.Chunk frame) {
+        for (Link link : links) {
+            if (link != null) link.offer(frame);
+        }
+    }
+
+    /**
+     * Counts the links having texts queued for their nodes.
+     */
+    long lagging() {
+        long lagging = 0;
+        for (Link link : links) {
+            if (link != null && !link.queue.isEmpty()) lagging++;
+        }
+        return lagging;
+    }
+
+    /**
+     * Checks whether a link introduced as coming from the node may be accepted from the remote address: the address
+     * has to be one the host of the node resolves to. Any loopback address stands for any other one, as the nodes
+     * sharing a machine may be listed by "localhost" and still connect from either of its addresses.
+     *
+     * @throws IOException in case the host of the node does not resolve.
+     */
+    boolean admits(int peer, InetAddress remote) throws IOException {
+        for (InetAddress address : InetAddress.getAllByName(nodes.get(peer).getHostString())) {
+            if (address.equals(remote) || address.isLoopbackAddress() && remote.isLoopbackAddress()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the text relayed to this node has not been seen among the recent ones and remembers it.
+     */
+    private boolean firstSeen(long id) {
+        return seen.add(id);
+    }
+
+    /**
+     * Thread task to infinitely take the texts queued for another node and to write them to the node in batches.
+     * Keeps reconnecting while the node is unavailable, retrying with growing delays; the texts keep being queued
+     * meanwhile, the oldest ones dropped once the queue is full.
+     * Supposed to be in one instance per other node.
+     */
+    private class Link extends Worker {
+        private final int peer;
+        private final BlockingQueue<BufferPool.Chunk> queue = new ArrayBlockingQueue<>(capacity);
+        private final List<BufferPool.Chunk> batch = new ArrayList<>(batchSize);
+        /**
+         * Array the pooled frames are copied through into the output stream.
+         */
+        private final byte[] scratch = new byte[WRITE_BUFFER_SIZE];
+        private long retryDelay = MIN_RETRY_DELAY;
+        private volatile Socket socket;
+        private OutputStream out;
+
+        public Link(int peer) {
+            this.peer = peer;
+        }
+
+        /**
+         * Puts the frame into the queue, dropping the oldest queued frame if there is no room.
+         */
+        void offer(BufferPool.Chunk frame) {
+            frame.retain();
+            while (!queue.offer(frame)) {
+                BufferPool.Chunk oldest = queue.poll();
+                if (oldest != null) {
+                    oldest.release();
+                    server.metrics.relayDropped.increment();
+                }
+            }
+        }
+
+        @Override
+        protected void init() {
+            Log.info("link to node " + peer + " started: " + nodes.get(peer));
+        }
+
+        @Override
+        protected void loop() throws IOException, InterruptedException {
+            if (batch.isEmpty()) collect();
+            if (out == null && !connect()) return;
+            try {
+                for (BufferPool.Chunk frame : batch) {
+                    frame.writeTo(out, scratch);
+                }
+                out.flush();
+            } catch (IOException e) {
+                if (!isInterrupted()) Log.warn("link to node " + peer + " lost: " + e);
+                // the batch is kept to be written again, the node drops what it has already got
+                disconnect();
+                return;
+            }
+            server.metrics.relayedOut.add(batch.size());
+            batch.forEach(BufferPool.Chunk::release);
+            batch.clear();
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            disconnect();
+            batch.forEach(BufferPool.Chunk::release);
+            batch.clear();
+            BufferPool.Chunk frame;
+            while ((frame = queue.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        @Override
+        protected void unblock() throws IOException {
+            Socket current = socket;
+            if (current != null) current.close();
+        }
+
+        /**
+         * Takes up to {@link Cluster#batchSize} frames from the queue, waiting for the first one, and then for
+         * {@link Cluster#linger} at most for the rest.
+         */
+        private void collect() throws InterruptedException {
+            batch.add(queue.take());
+            long deadline = System.nanoTime() + linger;
+            while (batch.size() < batchSize) {
+                if (queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+                long left = deadline - System.nanoTime();
+                BufferPool.Chunk frame = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : null;
+                if (frame == null) break;
+                batch.add(frame);
+            }
+        }
+
+        /**
+         * Connects to the node and introduces this node by its index. Waits before returning in case of a failure.
+         *
+         * @return true if connected.
+         */
+        private boolean connect() throws IOException, InterruptedException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(nodes.get(peer), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
+                out.writeInt(node);
+                out.flush();
+                this.socket = socket;
+                this.out = out;
+            } catch (IOException e) {
+                socket.close();
+                if (retryDelay == MIN_RETRY_DELAY) Log.warn("link to node " + peer + " failed to connect: " + e);
+                TimeUnit.MILLISECONDS.sleep(retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                return false;
+            }
+            retryDelay = MIN_RETRY_DELAY;
+            Log.info("link to node " + peer + " connected");
+            return true;
+        }
+
+        private void disconnect() throws IOException {
+            out = null;
+            Socket current = socket;
+            socket = null;
+            if (current != null) current.close();
+        }
+    }
+
+    /**
+     * Thread task to infinitely accept links from the other nodes, starting an {@link Cluster.Inbound} for each.
+     * Supposed to be in one instance per {@link Cluster}.
+     */
+    private class Acceptor extends Worker {
+        private ServerSocket serverSocket;
+
+        @Override
+        protected void init() throws IOException {
+            serverSocket = new ServerSocket(nodes.get(node).getPort());
+            Log.info("cluster node " + node + " of " + nodes.size() + " accepting links at " + nodes.get(node));
+        }
+
+        @Override
+        protected void loop() {
+            Socket socket = null;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                pool.start(new Inbound(socket));
+            } catch (IOException e) {
+                if (isInterrupted()) return;
+                Log.error(e);
+                if (socket != null) close(socket);
+            }
+        }
+
+        private void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error(e);
+            }
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            unblock();
+        }
+
+        @Override
+        protected void unblock() throws IOException {
+            if (serverSocket != null) serverSocket.close();
+        }
+    }
+
+    /**
+     * Thread task corresponding to a link accepted from another node. Infinitely reads the texts relayed by the node
+     * and hands those not seen before over to the {@link Server}. A link not introduced in time by a node listed at
+     * its remote address is dropped before anything is read from it.
+     */
+    private class Inbound extends Worker {
+        private final Socket socket;
+        private DataInputStream in;
+        private int peer = -1;
+
+        public Inbound(Socket socket) {
+            this.socket = Objects.requireNonNull(socket);
+        }
+
+        @Override
+        protected void init() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            try {
+                peer = introduce();
+            } catch (IOException e) {
+                Log.warn("link from " + socket.getRemoteSocketAddress() + " refused: " + e);
+                shutdown();
+                return;
+            }
+            Log.info("link from node " + peer + " accepted");
+        }
+
+        /**
+         * Reads the index the node introduces itself by and checks it against the remote address of the link.
+         *
+         * @return the index of the node.
+         * @throws IOException in case the index is not read in time, is not of another node or the node is not
+         *                     listed at the remote address.
+         */
+        private int introduce() throws IOException {
+            socket.setSoTimeout(INTRODUCTION_TIMEOUT);
+            int peer = in.readInt();
+            if (peer < 0 || peer >= nodes.size() || peer == node) {
+                throw new StreamCorruptedException("link from an unknown node " + peer);
+            }
+            if (!admits(peer, socket.getInetAddress())) {
+                throw new StreamCorruptedException("node " + peer + " is not listed at " + socket.getInetAddress());
+            }
+            socket.setSoTimeout(0);
+            return peer;
+        }
+
+        @Override
+        protected void loop() throws InterruptedException {
+            Message message;
+            try {
+                message = Protocol.read(in, Codec.BINARY);
+            } catch (IOException e) {
+                if (!isInterrupted()) Log.warn("link from node " + peer + " closed: " + e);
+                shutdown();
+                return;
+            }
+            if (!firstSeen(message.getId())) {
+                server.metrics.relayDuplicates.increment();
+                return;
+            }
+            server.relayed(message);
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        protected void unblock() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package ru.ifmo.chat;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodings of a {@link Message} into a frame payload, each introduced by a version of the {@link Protocol}.
+ * Both sides of a connection agree on the {@link Codec} during the handshake, see {@link Protocol}.
+ */
+public enum Codec {
+    /**
+     * Version 1: the Java object stream of the {@link Client}-s deployed before the versioned handshake. Not framed:
+     * each {@link Message} is written as a reset of the stream followed by the serialized {@link Message}, so the same
+     * bytes may follow whatever has been written to the stream before them, and are read by a long-lived stream of
+     * {@link Protocol#objectStream(InputStream)}. A payload is decoded as the only {@link Message} of a stream.
+     */
+    SERIALIZED(1) {
+        @Override
+        public byte[] encode(Message message) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.reset();
+                out.writeObject(message);
+            }
+            byte[] stream = bytes.toByteArray();
+            return Arrays.copyOfRange(stream, Protocol.STREAM_HEADER.length, stream.length);
+        }
+
+        @Override
+        public Message decode(byte[] payload, int offset, int length) throws IOException {
+            InputStream stream = new SequenceInputStream(new ByteArrayInputStream(Protocol.STREAM_HEADER),
+                    new ByteArrayInputStream(payload, offset, length));
+            try (ObjectInputStream in = Protocol.objectStream(stream)) {
+                return (Message) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new StreamCorruptedException("frame does not hold a message: " + e);
+            }
+        }
+    },
+    /**
+     * Version 2: compact binary layout of the {@link Message}:
+     * <pre>
+     * byte   kind     {@link Message.Kind#code()}
+     * long   id       {@link Message#getId()}
+     * long   sent     epoch milliseconds, {@link Long#MIN_VALUE} if not set
+     * short  length of the sender name, followed by the UTF-8 encoded sender name
+     * short  length of the room name, followed by the UTF-8 encoded room name
+     * int    length of the content, followed by the UTF-8 encoded content
+     * long   received epoch milliseconds, {@link Long#MIN_VALUE} if not set
+     * </pre>
+     * The received timestamp was appended to the layout later: payloads ending before it are decoded as not having
+     * it, and decoders not knowing it ignore it.
+     */
+    BINARY(2) {
+        @Override
+        public byte[] encode(Message message) {
+            int length = binaryLength(message);
+            ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_LENGTH + length);
+            putBinary(frame.putInt(length), message);
+            return frame.array();
+        }
+
+        @Override
+        BufferPool.Chunk encode(Message message, BufferPool pool) {
+            int length = binaryLength(message);
+            BufferPool.Chunk frame = pool.acquire(Protocol.HEADER_LENGTH + length);
+            putBinary(frame.buffer().putInt(length), message);
+            frame.buffer().flip();
+            return frame;
+        }
+
+        @Override
+        public Message decode(byte[] payload, int offset, int length) throws IOException {
+            try {
+                ByteBuffer frame = ByteBuffer.wrap(payload, offset, length);
+                byte code = frame.get();
+                Message.Kind kind = Message.Kind.of(code);
+                if (kind == null) throw new StreamCorruptedException("unknown message kind: " + code);
+                long id = frame.getLong();
+                long sent = frame.getLong();
+                String sender = string(frame, Short.toUnsignedInt(frame.getShort()));
+                String room = string(frame, Short.toUnsignedInt(frame.getShort()));
+                String content = string(frame, frame.getInt());
+                long received = frame.remaining() >= Long.BYTES ? frame.getLong() : Long.MIN_VALUE;
+                return new Message(id, kind, sender, room, content, sent == Long.MIN_VALUE ? 0 : sent,
+                        received == Long.MIN_VALUE ? 0 : received);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new StreamCorruptedException("malformed frame: " + e);
+            }
+        }
+
+        private String string(ByteBuffer frame, int length) {
+            if (length < 0 || length > frame.remaining()) throw new BufferUnderflowException();
+            String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length,
+                    StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+            return value;
+        }
+    },
+    /**
+     * Version 3: the {@link Codec#BINARY} payload, deflated if it is at least {@link Codec#COMPRESSION_THRESHOLD}
+     * bytes long and shrinks by deflating:
+     * <pre>
+     * byte   format   0 for the payload as is, 1 for the deflated payload
+     * int    length of the payload before deflating, for the deflated payload only
+     * ...    the {@link Codec#BINARY} payload, as is or deflated
+     * </pre>
+     * Deflating is tuned for speed rather than for ratio. As the {@link Server} encodes a {@link Message} once per
+     * {@link Codec}, a broadcast {@link Message} is deflated once no matter how many recipients it has.
+     */
+    COMPRESSED(3) {
+        private static final byte RAW = 0;
+        private static final byte DEFLATED = 1;
+
+        @Override
+        public byte[] encode(Message message) throws IOException {
+            byte[] binary = BINARY.encode(message);
+            int length = binary.length - Protocol.HEADER_LENGTH;
+            if (length >= COMPRESSION_THRESHOLD) {
+                byte[] deflated = deflate(binary, Protocol.HEADER_LENGTH, length);
+                if (deflated != null) return deflated;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(binary.length + 1);
+            frame.putInt(length + 1)
+                    .put(RAW)
+                    .put(binary, Protocol.HEADER_LENGTH, length);
+            return frame.array();
+        }
+
+        /**
+         * Encodes a payload too short to be deflated straight into the pooled buffer. A longer one is deflated on the
+         * heap and copied.
+         */
+        @Override
+        BufferPool.Chunk encode(Message message, BufferPool pool) throws IOException {
+            int length = binaryLength(message);
+            if (length >= COMPRESSION_THRESHOLD) return super.encode(message, pool);
+            BufferPool.Chunk frame = pool.acquire(Protocol.HEADER_LENGTH + 1 + length);
+            putBinary(frame.buffer().putInt(length + 1).put(RAW), message);
+            frame.buffer().flip();
+            return frame;
+        }
+
+        /**
+         * Deflates the payload into a complete frame.
+         *
+         * @return the frame or null if the payload does not shrink.
+         */
+        private byte[] deflate(byte[] payload, int offset, int length) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(payload, offset, length);
+                deflater.finish();
+                int header = Protocol.HEADER_LENGTH + 1 + Integer.BYTES;
+                byte[] frame = new byte[header + length];
+                int deflated = header;
+                while (!deflater.finished() && deflated < frame.length) {
+                    deflated += deflater.deflate(frame, deflated, frame.length - deflated);
+                }
+                if (!deflater.finished()) return null;
+                ByteBuffer.wrap(frame).putInt(deflated - Protocol.HEADER_LENGTH).put(DEFLATED).putInt(length);
+                return Arrays.copyOf(frame, deflated);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public Message decode(byte[] payload, int offset, int length) throws IOException {
+            if (length < 1) throw new StreamCorruptedException("empty frame");
+            switch (payload[offset]) {
+                case RAW:
+                    return BINARY.decode(payload, offset + 1, length - 1);
+                case DEFLATED:
+                    if (length < 1 + Integer.BYTES) throw new StreamCorruptedException("malformed frame");
+                    int inflatedLength = ByteBuffer.wrap(payload, offset + 1, Integer.BYTES).getInt();
+                    Protocol.checkLength(inflatedLength);
+                    byte[] inflated = new byte[inflatedLength];
+                    Inflater inflater = new Inflater();
+                    try {
+                        inflater.setInput(payload, offset + 1 + Integer.BYTES, length - 1 - Integer.BYTES);
+                        int done = 0;
+                        while (done < inflatedLength && !inflater.finished()) {
+                            int inflatedNow = inflater.inflate(inflated, done, inflatedLength - done);
+                            if (inflatedNow == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                            done += inflatedNow;
+                        }
+                        if (done != inflatedLength || !inflater.finished()) {
+                            throw new StreamCorruptedException("malformed deflated frame");
+                        }
+                    } catch (DataFormatException e) {
+                        throw new StreamCorruptedException("malformed deflated frame: " + e.getMessage());
+                    } finally {
+                        inflater.end();
+                    }
+                    return BINARY.decode(inflated, 0, inflatedLength);
+                default:
+                    throw new StreamCorruptedException("unknown frame format: " + payload[offset]);
+            }
+        }
+    };
+
+    /**
+     * The most recent {@link Codec} known to this side of a connection.
+     */
+    public static final Codec LATEST = COMPRESSED;
+
+    /**
+     * Length in bytes of the shortest {@link Codec#BINARY} payload the {@link Codec#COMPRESSED} format deflates.
+     * Shorter payloads hardly shrink while deflating costs much more than copying them as is.
+     */
+    public static final int COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * Version number of the {@link Protocol} that introduced the {@link Codec}.
+     */
+    private final byte version;
+
+    Codec(int version) {
+        this.version = (byte) version;
+    }
+
+    /**
+     * Finds the {@link Codec} by its version number.
+     *
+     * @return the {@link Codec} of the requested version or null if the version is unknown.
+     */
+    public static Codec of(int version) {
+        for (Codec codec : values()) {
+            if (codec.version == version) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the version number of the {@link Protocol} that introduced the {@link Codec}.
+     */
+    public byte version() {
+        return version;
+    }
+
+    /**
+     * Encodes the {@link Message} into a complete frame, header included, or into the bytes to append to the stream
+     * of a {@link Codec#SERIALIZED} connection.
+     *
+     * @param message the {@link Message} to encode.
+     * @return the frame ready to be written to a connection.
+     * @throws IOException in case the {@link Message} could not be encoded.
+     */
+    public abstract byte[] encode(Message message) throws IOException;
+
+    /**
+     * Encodes the {@link Message} into a complete frame, header included, held by a buffer of the pool.
+     *
+     * @param message the {@link Message} to encode.
+     * @param pool    the {@link BufferPool} to take the buffer from.
+     * @return the {@link BufferPool.Chunk} holding the frame, flipped, with a single reference.
+     * @throws IOException in case the {@link Message} could not be encoded.
+     */
+    BufferPool.Chunk encode(Message message, BufferPool pool) throws IOException {
+        byte[] frame = encode(message);
+        BufferPool.Chunk chunk = pool.acquire(frame.length);
+        chunk.buffer().put(frame).flip();
+        return chunk;
+    }
+
+    /**
+     * Decodes a {@link Message} from the frame payload.
+     *
+     * @param payload array holding the payload.
+     * @param offset  position of the payload within the array.
+     * @param length  length of the payload.
+     * @return decoded {@link Message}.
+     * @throws IOException in case the payload does not hold a valid {@link Message}.
+     */
+    public abstract Message decode(byte[] payload, int offset, int length) throws IOException;
+
+    /**
+     * Works out the length of the {@link Codec#BINARY} payload of the {@link Message}.
+     *
+     * @throws IllegalArgumentException in case the sender or the room name is too long.
+     */
+    private static int binaryLength(Message message) {
+        int sender = utf8Length(message.getSender());
+        int room = utf8Length(message.getRoom());
+        if (sender > 0xFFFF) throw new IllegalArgumentException("sender name is too long");
+        if (room > 0xFFFF) throw new IllegalArgumentException("room name is too long");
+        return 1 + Long.BYTES + Long.BYTES + Short.BYTES + sender + Short.BYTES + room
+               + Integer.BYTES + utf8Length(message.getMessage()) + Long.BYTES;
+    }
+
+    /**
+     * Puts the {@link Codec#BINARY} payload of the {@link Message} into the frame, encoding the strings in place
+     * rather than into byte arrays of their own.
+     */
+    private static void putBinary(ByteBuffer frame, Message message) {
+        frame.put(message.getKind().code())
+                .putLong(message.getId())
+                .putLong(message.getSent() == 0 ? Long.MIN_VALUE : message.getSent());
+        putUtf8(frame.putShort((short) utf8Length(message.getSender())), message.getSender());
+        putUtf8(frame.putShort((short) utf8Length(message.getRoom())), message.getRoom());
+        putUtf8(frame.putInt(utf8Length(message.getMessage())), message.getMessage());
+        frame.putLong(message.getReceived() == 0 ? Long.MIN_VALUE : message.getReceived());
+    }
+
+    /**
+     * Works out the length of the UTF-8 encoding of the string, as done by {@link String#getBytes}: an unpaired
+     * surrogate is replaced by '?'.
+     */
+    private static int utf8Length(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                length++;
+            } else if (!Character.isSurrogate(c)) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                       && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // four bytes for the pair of chars
+                length += 2;
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private static void putUtf8(ByteBuffer frame, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                frame.put((byte) c);
+            } else if (c < 0x800) {
+                frame.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                frame.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                       && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int point = Character.toCodePoint(c, value.charAt(++i));
+                frame.put((byte) (0xF0 | point >> 18)).put((byte) (0x80 | point >> 12 & 0x3F))
+                        .put((byte) (0x80 | point >> 6 & 0x3F)).put((byte) (0x80 | point & 0x3F));
+            } else {
+                frame.put((byte) '?');
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.ifmo.chat;
+
+import java.io.IOException;
+
+/**
+ * Transport of a single {@link Client} connected to the {@link Server}.
+ * Hides whether the {@link Client} is served by a blocking socket or by the {@link NioEngine}.
+ */
+interface Connection {
+    /**
+     * The {@link Codec} agreed with the {@link Client} during the handshake. Frames put into the outbound queue of the
+     * {@link Server.ClientEntity} must be encoded by it.
+     */
+    Codec codec();
+
+    /**
+     * Signals that frames were put into the outbound queue of the {@link Server.ClientEntity}. The {@link Connection}
+     * takes the frames from the queue and writes them at its own pace.
+     */
+    void flush();
+
+    /**
+     * Closes the connection. Calling it on an already closed connection has no effect.
+     */
+    void close() throws IOException;
+
+    /**
+     * Remote address of the {@link Client}. Used for logging purposes.
+     */
+    String address();
+}
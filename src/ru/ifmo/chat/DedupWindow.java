@@ -0,0 +1,111 @@
+package ru.ifmo.chat;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded window of the recently seen {@link Message}-s of {@link Client}-s, to drop those sent again after the
+ * {@link Client} missed the acknowledgement.
+ * <p>
+ * A {@link Message} is remembered by a 64-bit fingerprint of the {@link Client}'s {@link UUID} and the identifier the
+ * {@link Client} gave it. Fingerprints are kept in two generations, each a hash set of primitive longs with open
+ * addressing. New fingerprints go into the current generation; once the window passes, or once the current generation
+ * is full, it becomes the previous one and the former previous one is forgotten. So a fingerprint is remembered for
+ * the window at least and for twice the window at most, unless the {@link Client}-s send more than the capacity of a
+ * generation within the window. Thread-safe.
+ */
+class DedupWindow {
+    private final long window;
+    private final int capacity;
+    private long[] current;
+    private long[] previous;
+    private int size;
+    private long rotated = System.nanoTime();
+
+    /**
+     * @param window   how long to remember a {@link Message} at least.
+     * @param unit     unit of the window.
+     * @param capacity maximal number of {@link Message}-s remembered by a generation. Rounded up to a power of two.
+     */
+    DedupWindow(long window, TimeUnit unit, int capacity) {
+        if (window <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("dedup window and capacity must be positive");
+        }
+        this.window = unit.toNanos(window);
+        this.capacity = Math.max(Integer.highestOneBit(capacity - 1) << 1, 1);
+        // kept half empty, so probing stays short
+        this.current = new long[2 * this.capacity];
+        this.previous = new long[2 * this.capacity];
+    }
+
+    /**
+     * Makes up the fingerprint of the {@link Message} the {@link Client} gave the identifier to. Never 0.
+     */
+    static long fingerprint(UUID uuid, long id) {
+        long hash = uuid.getMostSignificantBits() * 0x9E3779B97F4A7C15L ^ uuid.getLeastSignificantBits();
+        hash = mix(hash ^ mix(id));
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator: spreads every bit of the value over the whole result.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Checks whether the fingerprint has been seen within the window.
+     */
+    synchronized boolean contains(long fingerprint) {
+        rotate();
+        return find(current, fingerprint) >= 0 || find(previous, fingerprint) >= 0;
+    }
+
+    /**
+     * Remembers the fingerprint.
+     */
+    synchronized void add(long fingerprint) {
+        rotate();
+        if (size == capacity) shift();
+        int slot = find(current, fingerprint);
+        if (slot >= 0) return;
+        current[-slot - 1] = fingerprint;
+        size++;
+    }
+
+    /**
+     * Finds the fingerprint in the generation by linear probing.
+     *
+     * @return the slot holding the fingerprint or, if not found, (-slot - 1) of the empty slot it belongs to.
+     */
+    private static int find(long[] generation, long fingerprint) {
+        int mask = generation.length - 1;
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            if (generation[slot] == fingerprint) return slot;
+            if (generation[slot] == 0) return -slot - 1;
+        }
+    }
+
+    private void rotate() {
+        long now = System.nanoTime();
+        if (now - rotated < window) return;
+        shift();
+        if (now - rotated >= 2 * window) shift();
+        rotated = now;
+    }
+
+    /**
+     * Makes the current generation the previous one, forgetting the former previous one.
+     */
+    private void shift() {
+        long[] forgotten = previous;
+        previous = current;
+        Arrays.fill(forgotten, 0);
+        current = forgotten;
+        size = 0;
+    }
+}
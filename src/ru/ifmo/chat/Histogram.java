@@ -0,0 +1,110 @@
+package ru.ifmo.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values, e.g. latencies in nanoseconds, with a fixed relative precision.
+ * <p>
+ * Values are counted in buckets laid out the way HdrHistogram does it: values below {@link Histogram#SUB_BUCKETS}
+ * get a bucket each, and every further power of two range is split into {@link Histogram#SUB_BUCKETS}/2 buckets of
+ * equal width. So a bucket is never wider than 1/64 of its values, recording takes a few arithmetic operations and a
+ * single atomic increment, and the whole range of long fits into less than 4K buckets.
+ * Thread-safe: values may be recorded concurrently with reading percentiles.
+ */
+class Histogram {
+    /**
+     * Number of buckets values below it are counted in one by one. A power of two.
+     */
+    private static final int SUB_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Finds the bucket the value is counted in.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return HALF * shift + (int) (value >>> shift);
+    }
+
+    /**
+     * Retrieves the greatest value counted in the bucket.
+     */
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF - 1;
+        long lowest = (long) (index % HALF + HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Records the value. Negative values are recorded as 0.
+     */
+    void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Retrieves the number of recorded values.
+     */
+    long count() {
+        return count.get();
+    }
+
+    /**
+     * Retrieves the greatest recorded value or 0 if nothing was recorded.
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Retrieves the mean of the recorded values or 0 if nothing was recorded.
+     */
+    double mean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Retrieves the value the given share of the recorded values does not exceed, up to the precision of the buckets.
+     *
+     * @param percentile the share in percents, from 0 to 100.
+     * @return the value or 0 if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets all the recorded values.
+     * Values recorded concurrently with the reset may be partially forgotten.
+     */
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
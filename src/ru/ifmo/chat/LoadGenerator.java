@@ -0,0 +1,338 @@
+package ru.ifmo.chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for the {@link Server}. Speaks the same {@link Protocol} as the {@link Client}.
+ * <p>
+ * Opens the configured number of connections, spreads them over the rooms and posts texts at the target rate, each
+ * by the next connection in turn. Every text carries the moment it was due to be sent, so the latency of each
+ * delivery is measured from that moment: a sender falling behind the schedule does not hide the delays it causes.
+ * After the warm-up only texts due within the measurement period are counted. Finally reports:
+ * <ul>
+ * <li>connections set and connection errors;</li>
+ * <li>texts sent and deliveries received against the deliveries expected, per second;</li>
+ * <li>end-to-end latency percentiles p50, p99, p999 and the maximum.</li>
+ * </ul>
+ * The connections may be spread over several nodes of a {@link Cluster} listed by the "servers" setting, so each
+ * text has to be relayed between the nodes to reach all the members of its room.
+ * Settings are read from the {@link LoadGenerator#SETTINGS} file, if it exists, and may be overridden by
+ * "name=value" arguments. Exits with status 1 in case of connection errors, so it may be run by CI.
+ */
+public class LoadGenerator {
+    /**
+     * Relative path to settings file
+     */
+    private static final Path SETTINGS = Paths.get("resources/LoadGenerator.properties");
+
+    /**
+     * Time given to the {@link Server} to apply the subscriptions before the texts are posted and to deliver the
+     * texts in flight after the last one is posted, in milliseconds.
+     */
+    private static final long SETTLE_MILLIS = 2000;
+
+    /**
+     * Overall holder for {@link LoadGenerator} settings.
+     */
+    private final Properties properties = new Properties();
+
+    /**
+     * Marks the texts of this run, so texts replayed from the history of previous runs are not counted.
+     */
+    private final String run = UUID.randomUUID().toString().substring(0, 8);
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final Histogram latency = new Histogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private long sent;
+    private long expected;
+    /**
+     * {@link Protocol.Capability}-s the sessions introduce themselves with: all but {@link Protocol.Capability#ACKS},
+     * and but {@link Protocol.Capability#COMPRESSION} unless the "compression" setting is true.
+     */
+    private final Set<Protocol.Capability> capabilities = EnumSet.allOf(Protocol.Capability.class);
+
+    /**
+     * Beginning and end of the measurement period, by {@link System#nanoTime()}.
+     */
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureTo = Long.MAX_VALUE;
+    /**
+     * Set once the run is over, so the sessions closed on purpose are not counted as connection errors.
+     */
+    private volatile boolean finished;
+
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.init(args);
+        } catch (InitializationException e) {
+            System.out.println("Failed to init the load generator's settings. Check the settings in " +
+                               SETTINGS.toAbsolutePath());
+            e.printStackTrace();
+            System.exit(2);
+        }
+        boolean failed;
+        try {
+            failed = generator.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Reads the {@link LoadGenerator#SETTINGS} file and applies "name=value" overrides given as arguments.
+     */
+    private void init(String[] args) throws InitializationException {
+        if (Files.exists(SETTINGS)) {
+            try (BufferedReader reader = Files.newBufferedReader(SETTINGS)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                System.out.println("Failed to read from file " + SETTINGS.toAbsolutePath());
+                e.printStackTrace();
+                throw new InitializationException("Load generator settings were not properly set");
+            }
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) throw new InitializationException("expected name=value argument: " + arg);
+            properties.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+        }
+    }
+
+    /**
+     * Connects, posts the texts and reports the results.
+     *
+     * @return true if there were connection errors.
+     */
+    private boolean start() throws InterruptedException {
+        List<InetSocketAddress> endpoints;
+        int clients;
+        int rooms;
+        double rate;
+        long warmup;
+        long duration;
+        int size;
+        try {
+            String servers = properties.getProperty("servers", "").trim();
+            endpoints = servers.isEmpty() ?
+                    List.of(new InetSocketAddress(properties.getProperty("server.ip", "127.0.0.1"),
+                            Integer.parseInt(properties.getProperty("server.port", "8888")))) :
+                    Cluster.parse(servers);
+            clients = Integer.parseInt(properties.getProperty("clients", "100"));
+            rooms = Integer.parseInt(properties.getProperty("rooms", "0"));
+            rate = Double.parseDouble(properties.getProperty("rate", "1000"));
+            warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty("warmupSeconds", "5")));
+            duration = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty("durationSeconds", "30")));
+            size = Integer.parseInt(properties.getProperty("messageSize", "64"));
+            if (!Boolean.parseBoolean(properties.getProperty("compression", "false").trim())) {
+                capabilities.remove(Protocol.Capability.COMPRESSION);
+            }
+            // the sessions neither number their texts nor acknowledge the deliveries
+            capabilities.remove(Protocol.Capability.ACKS);
+            if (clients <= 0 || rate <= 0) throw new IllegalArgumentException("clients and rate must be positive");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid load generator settings");
+            e.printStackTrace();
+            return true;
+        }
+        WorkerPool receivers = new WorkerPool("receiver", WorkerPool.Mode.VIRTUAL, 0);
+        int[] members = new int[Math.max(rooms, 1)];
+        long connectStarted = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int group = rooms > 0 ? i % rooms : 0;
+            String room = rooms > 0 ? "load-" + group : Message.DEFAULT_ROOM;
+            try {
+                // members of a room go to different nodes in turn
+                InetSocketAddress endpoint = endpoints.get(i / members.length % endpoints.size());
+                Session session = new Session("load-" + i, room, group, endpoint);
+                sessions.add(session);
+                members[group]++;
+                receivers.start(session.new Receiver());
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                System.out.println("failed to connect: " + e);
+            }
+        }
+        System.out.printf("connected %d of %d clients in %d ms%n", sessions.size(), clients,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStarted));
+        if (sessions.isEmpty()) return true;
+        Thread.sleep(SETTLE_MILLIS);
+
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long begin = System.nanoTime();
+        measureFrom = begin + warmup;
+        measureTo = measureFrom + duration;
+        String padding = "x".repeat(Math.max(size - run.length() - 21, 0));
+        for (long due = begin; due < measureTo; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            Session session = sessions.get((int) (sent % sessions.size()));
+            if (session.send(run + " " + due + " " + padding) && due >= measureFrom) {
+                expected += members[session.group] - 1;
+            }
+            sent++;
+        }
+        Thread.sleep(SETTLE_MILLIS);
+        finished = true;
+        receivers.shutdown(1, TimeUnit.SECONDS);
+        return report(interval);
+    }
+
+    /**
+     * Prints out the results of the run.
+     *
+     * @return true if there were connection errors.
+     */
+    private boolean report(long interval) {
+        double seconds = (double) (measureTo - measureFrom) / TimeUnit.SECONDS.toNanos(1);
+        long measured = (measureTo - measureFrom + interval - 1) / interval;
+        System.out.printf("connections  %d, errors %d%n", sessions.size(), errors.get());
+        System.out.printf("sent         %d in %.1f s (%.1f/s)%n", measured, seconds, measured / seconds);
+        System.out.printf("delivered    %d of %d expected (%.1f/s)%n", delivered.get(), expected,
+                delivered.get() / seconds);
+        System.out.printf("latency, us  p50 %.1f, p99 %.1f, p999 %.1f, max %.1f, mean %.1f%n",
+                micros(latency.percentile(50)), micros(latency.percentile(99)), micros(latency.percentile(99.9)),
+                micros(latency.max()), latency.mean() / 1000);
+        return errors.get() > 0;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     * A single simulated {@link Client}: the socket, the sending side used by the pacing loop only, and the index of
+     * the room of the session among the rooms of the run.
+     */
+    private class Session {
+        private final int group;
+        private final String name;
+        private final String room;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final Codec codec;
+        private volatile boolean alive = true;
+
+        Session(String name, String room, int group, InetSocketAddress endpoint) throws IOException {
+            this.group = group;
+            this.name = name;
+            this.room = room;
+            this.socket = new Socket();
+            try {
+                socket.connect(endpoint, (int) TimeUnit.SECONDS.toMillis(10));
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                codec = Protocol.hello(out, new DataInputStream(socket.getInputStream()), UUID.randomUUID(), name,
+                        capabilities, 0).codec();
+                if (!Message.DEFAULT_ROOM.equals(room)) {
+                    Protocol.write(out, codec, Message.join(name, room));
+                    Protocol.write(out, codec, Message.leave(name, Message.DEFAULT_ROOM));
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Posts the text to the room of the session.
+         *
+         * @return true if the text was sent.
+         */
+        boolean send(String text) {
+            Message message = new Message(name, room, text);
+            message.setSent();
+            return write(message);
+        }
+
+        /**
+         * Writes the {@link Message}. Synchronized, as both the pacing loop and the {@link Session.Receiver}
+         * answering heartbeats write to the session.
+         *
+         * @return true if the {@link Message} was written.
+         */
+        private synchronized boolean write(Message message) {
+            if (!alive) return false;
+            try {
+                Protocol.write(out, codec, message);
+                return true;
+            } catch (IOException e) {
+                fail(e);
+                return false;
+            }
+        }
+
+        private void fail(IOException e) {
+            if (alive && !finished) {
+                alive = false;
+                errors.incrementAndGet();
+                System.out.println(name + " failed: " + e);
+            }
+        }
+
+        /**
+         * Thread task to infinitely read the texts delivered to the session and to record their latency. Answers
+         * heartbeats of the {@link Server}.
+         */
+        private class Receiver extends Worker {
+            private DataInputStream in;
+
+            @Override
+            protected void init() throws IOException {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            }
+
+            @Override
+            protected void loop() {
+                Message message;
+                try {
+                    message = Protocol.read(in, codec);
+                } catch (IOException e) {
+                    fail(e);
+                    shutdown();
+                    return;
+                }
+                long received = System.nanoTime();
+                if (message.getKind() == Message.Kind.PING) {
+                    write(Message.pong());
+                    return;
+                }
+                String text = message.getMessage();
+                if (!text.startsWith(run)) return;
+                int end = text.indexOf(' ', run.length() + 1);
+                long due = Long.parseLong(text.substring(run.length() + 1, end));
+                if (due < measureFrom || due >= measureTo) return;
+                latency.record(received - due);
+                delivered.incrementAndGet();
+            }
+
+            @Override
+            protected void stop() throws IOException {
+                socket.close();
+            }
+
+            @Override
+            protected void unblock() throws IOException {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ru.ifmo.chat;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled asynchronous log of the {@link Server}.
+ * <p>
+ * Logging a line only puts a record into a bounded queue: formatting and writing to the console is done by a single
+ * background Thread, so a slow console never holds up the Thread that logs. When the queue is full the line is dropped
+ * and counted instead of waiting. Lines below the current {@link Log.Level} cost nothing but the check of the level;
+ * callers building a line on a hot path are supposed to check {@link Log#enabled(Level)} first.
+ */
+final class Log {
+    /**
+     * Levels of the lines, from the most to the least important.
+     */
+    enum Level {
+        ERROR, WARN, INFO, DEBUG;
+
+        /**
+         * Parses the {@link Log.Level} from its case-insensitive name, as set in settings files.
+         */
+        static Level of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A line waiting to be written. Formatted by the writing Thread only.
+     */
+    private record Line(long time, Level level, String thread, String text, Throwable error) {
+    }
+
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+
+    private static final BlockingQueue<Line> lines = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+
+    static {
+        Thread writer = new Thread(Log::write, "log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets the least important {@link Log.Level} of the lines to write.
+     */
+    static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * Checks whether lines of the {@link Log.Level} are written.
+     */
+    static boolean enabled(Level level) {
+        return level.compareTo(Log.level) <= 0;
+    }
+
+    static void error(String text, Throwable error) {
+        log(Level.ERROR, text, error);
+    }
+
+    static void error(Throwable error) {
+        log(Level.ERROR, String.valueOf(error), error);
+    }
+
+    static void warn(String text) {
+        log(Level.WARN, text, null);
+    }
+
+    static void info(String text) {
+        log(Level.INFO, text, null);
+    }
+
+    static void debug(String text) {
+        log(Level.DEBUG, text, null);
+    }
+
+    /**
+     * Retrieves the number of lines dropped as the queue was full.
+     */
+    static long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until the lines logged so far are written.
+     *
+     * @param timeout how long to wait at most, in milliseconds.
+     */
+    static void flush(long timeout) throws InterruptedException {
+        long target = queued.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (written.get() + dropped.get() < target && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void log(Level level, String text, Throwable error) {
+        if (!enabled(level)) return;
+        queued.incrementAndGet();
+        if (!lines.offer(new Line(System.currentTimeMillis(), level, Thread.currentThread().getName(), text, error))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Body of the writing Thread: writes the lines in batches, one console write per batch.
+     */
+    private static void write() {
+        List<Line> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(lines.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            lines.drainTo(batch, BATCH_SIZE - 1);
+            for (Line line : batch) {
+                out.append(FORMAT.format(Instant.ofEpochMilli(line.time()))).append(' ')
+                        .append(line.level()).append(" [").append(line.thread()).append("] ")
+                        .append(line.text()).append(System.lineSeparator());
+                if (line.error() != null) {
+                    StringWriter trace = new StringWriter();
+                    line.error().printStackTrace(new PrintWriter(trace));
+                    out.append(trace);
+                }
+            }
+            System.out.print(out);
+            System.out.flush();
+            written.addAndGet(batch.size());
+            out.setLength(0);
+            batch.clear();
+        }
+    }
+}
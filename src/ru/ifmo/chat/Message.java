@@ -1,6 +1,8 @@
 package ru.ifmo.chat;
 
-import java.io.Serializable;
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Locale;
@@ -8,40 +10,335 @@ import java.util.Objects;
 
 /**
  * Interaction object to send and to receive via {@link Server} and {@link Client}.
+ * Besides the text posted to a room, a Message may carry a request to the {@link Server}, see {@link Message.Kind}.
+ * <p>
+ * The serialized form, used by the {@link Codec#SERIALIZED} format only, is the one of the Message of the
+ * {@link Client}-s deployed before the versioned handshake, extended by the fields added since. Those {@link Client}-s
+ * skip the added fields, and Messages they send are decoded as {@link Kind#TEXT}-s posted to {@link #DEFAULT_ROOM}.
  */
 public class Message implements Serializable {
+    private static final long serialVersionUID = -1149824051982682141L;
+    /**
+     * Fields of the serialized form: the sent timestamp keeps its original type, and the kind is written by its code,
+     * so a {@link Client} not knowing {@link Kind} still reads the Message.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("sender", String.class),
+            new ObjectStreamField("message", String.class),
+            new ObjectStreamField("sent", ZonedDateTime.class),
+            new ObjectStreamField("id", long.class),
+            new ObjectStreamField("kind", byte.class),
+            new ObjectStreamField("room", String.class),
+            new ObjectStreamField("received", long.class)
+    };
+
     /**
      * Sets up the formatting for displaying timestamps
      */
     public static final DateTimeFormatter FORMAT =
-            DateTimeFormatter.ofPattern("(MMM, d HH:mm:ss) ", Locale.ENGLISH);
+            DateTimeFormatter.ofPattern("(MMM, d HH:mm:ss) ", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+    /**
+     * The room every {@link Client} is in since connecting to the {@link Server}.
+     */
+    public static final String DEFAULT_ROOM = "general";
+
+    /**
+     * Kinds of Messages. The code of the kind is used by the {@link Codec#BINARY} format.
+     */
+    public enum Kind {
+        /**
+         * Text posted to the room by the sender.
+         */
+        TEXT(1),
+        /**
+         * Request to subscribe the sender to the room. The identifier of the request, if any, is the one of the most
+         * recent text of the room the sender has got, so the {@link Server} replays only the texts following it.
+         */
+        JOIN(2),
+        /**
+         * Request to unsubscribe the sender from the room.
+         */
+        LEAVE(3),
+        /**
+         * Request to the {@link Server} for a page of the room's history preceding the Message whose identifier is
+         * carried as the identifier of the request.
+         */
+        HISTORY(4),
+        /**
+         * Heartbeat to check that the other side of the connection is alive. Answered with {@link Kind#PONG}.
+         */
+        PING(5),
+        /**
+         * Answer to a {@link Kind#PING}.
+         */
+        PONG(6),
+        /**
+         * Introduction exchanged right after the handshake since version 4 of the {@link Protocol}: the sender is the
+         * name of the side, the text lists its {@link Protocol.Capability}-s. The identifier of a {@link Client}'s
+         * hello is the one to resume {@link #DEFAULT_ROOM} after, if any.
+         */
+        HELLO(7),
+        /**
+         * Notice of the {@link Server} going away: the identifier is the one the {@link Client} is to resume each of
+         * its rooms after, once reconnected. See {@link Protocol.Capability#RESUME}.
+         */
+        RESUME(8),
+        /**
+         * Text sent by the sender to a single user rather than posted to a room: the room is the name of the
+         * recipient. See {@link Protocol.Capability#DIRECT}.
+         */
+        DIRECT(9),
+        /**
+         * Request to the {@link Server} for the texts of the sender's rooms matching the query carried as the text,
+         * see {@link SearchIndex.Query}. Answered by the texts found, the oldest first, each as a SEARCH Message of the
+         * text's identifier, sender, room and content, followed by a SEARCH Message with no identifier closing the
+         * answer.
+         */
+        SEARCH(10),
+        /**
+         * Acknowledgement by the identifier, see {@link Protocol.Capability#ACKS}. Sent by the {@link Server}, it
+         * carries the greatest identifier the {@link Client} gave to its texts the {@link Server} has taken all the
+         * texts up to. Sent by the {@link Client}, it carries the number of the texts received over the connection,
+         * the delivery cursor of the {@link Client}. Sent once per burst of texts rather than per text.
+         */
+        ACK(11);
+
+        private final byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+
+        /**
+         * Retrieves the code of the kind used by the {@link Codec#BINARY} format.
+         */
+        public byte code() {
+            return code;
+        }
+
+        /**
+         * Finds the kind by its code.
+         *
+         * @return the kind with the code or null if the code is unknown.
+         */
+        public static Kind of(int code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) return kind;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Identifier of the Message assigned by the {@link Server} on receiving. 0 until assigned. A text sent by a
+     * {@link Client} having the {@link Protocol.Capability#ACKS} carries the identifier the {@link Client} gave it
+     * instead.
+     */
+    private long id;
+    /**
+     * What this Message stands for.
+     */
+    private final Kind kind;
     /**
      * Contains the Message's author and sender name.
      */
     private final String sender;
+    /**
+     * Name of the room the Message is posted to or refers to, or name of the recipient of a {@link Kind#DIRECT} text.
+     */
+    private final String room;
     /**
      * Message content
      */
     private final String message;
     /**
-     * A timestamp displaying when this Message was sent
+     * A timestamp displaying when this Message was sent, in epoch milliseconds by the sender's clock. 0 if not set.
+     */
+    private long sent;
+    /**
+     * A timestamp displaying when this Message was received by the {@link Server}, in epoch milliseconds by the
+     * {@link Server}'s clock. 0 if not set.
+     */
+    private long received;
+    /**
+     * This Message as displayed by {@link Message#toString()}. Built on first display only.
      */
-    private ZonedDateTime sent;
+    private transient String display;
+    /**
+     * The Message read from its serialized form, to stand for the deserialized instance, see
+     * {@link Message#readResolve()}.
+     */
+    private transient Message resolved;
 
     public Message(String sender, String message) {
+        this(sender, DEFAULT_ROOM, message);
+    }
+
+    public Message(String sender, String room, String message) {
+        this(Kind.TEXT, sender, room, message);
+    }
+
+    private Message(Kind kind, String sender, String room, String message) {
+        this.kind = Objects.requireNonNull(kind, "kind cannot be null");
         this.sender = Objects.requireNonNull(sender, "sender cannot be null");
+        this.room = Objects.requireNonNull(room, "room cannot be null");
         this.message = Objects.requireNonNull(message, "message cannot be null");
     }
 
+    /**
+     * Restores a Message decoded by a {@link Codec}.
+     */
+    Message(long id, Kind kind, String sender, String room, String message, long sent, long received) {
+        this(kind, sender, room, message);
+        this.id = id;
+        this.sent = sent;
+        this.received = received;
+    }
+
+    /**
+     * Creates a request to subscribe the sender to the room.
+     */
+    public static Message join(String sender, String room) {
+        return new Message(Kind.JOIN, sender, room, "");
+    }
+
+    /**
+     * Creates a request to unsubscribe the sender from the room.
+     */
+    public static Message leave(String sender, String room) {
+        return new Message(Kind.LEAVE, sender, room, "");
+    }
+
+    /**
+     * Creates a request for a page of the room's history.
+     *
+     * @param before identifier of the Message the page precedes; 0 for the most recent page.
+     */
+    public static Message history(String sender, String room, long before) {
+        Message message = new Message(Kind.HISTORY, sender, room, "");
+        message.id = before;
+        return message;
+    }
+
+    /**
+     * Creates a text to be delivered to the recipient only, to every connection of the recipient.
+     *
+     * @param recipient name of the user the text is sent to.
+     */
+    public static Message direct(String sender, String recipient, String message) {
+        return new Message(Kind.DIRECT, sender, recipient, message);
+    }
+
+    /**
+     * Creates a request for the texts matching the query, or the closing of the answer to one if the query is empty.
+     */
+    public static Message search(String sender, String query) {
+        return new Message(Kind.SEARCH, sender, DEFAULT_ROOM, query);
+    }
+
+    /**
+     * Wraps the text found by a search into the answer to the request.
+     */
+    static Message found(Message text) {
+        return new Message(text.id, Kind.SEARCH, text.sender, text.getRoom(), text.message, text.sent, text.received);
+    }
+
+    /**
+     * Creates an acknowledgement of the texts up to the identifier.
+     */
+    public static Message ack(long id) {
+        Message message = new Message(Kind.ACK, "", DEFAULT_ROOM, "");
+        message.id = id;
+        return message;
+    }
+
+    /**
+     * Creates a heartbeat to check that the other side of the connection is alive.
+     */
+    public static Message ping() {
+        return new Message(Kind.PING, "", DEFAULT_ROOM, "");
+    }
+
+    /**
+     * Creates an answer to a heartbeat.
+     */
+    public static Message pong() {
+        return new Message(Kind.PONG, "", DEFAULT_ROOM, "");
+    }
+
+    /**
+     * Creates an introduction of the side of the connection.
+     *
+     * @param name         name of the side.
+     * @param capabilities list of the {@link Protocol.Capability}-s of the side, see
+     *                     {@link Protocol.Capability#format(java.util.Set)}.
+     */
+    public static Message hello(String name, String capabilities) {
+        return new Message(Kind.HELLO, name, DEFAULT_ROOM, capabilities);
+    }
+
+    /**
+     * Creates a notice of the {@link Server} going away.
+     *
+     * @param id identifier of the text the {@link Client} has got all the texts of its rooms up to.
+     */
+    public static Message resume(long id) {
+        Message message = new Message(Kind.RESUME, "", DEFAULT_ROOM, "");
+        message.id = id;
+        return message;
+    }
+
+    /**
+     * Retrieves the identifier of this Message.
+     *
+     * @return the identifier assigned by the {@link Server} or 0 if not assigned yet.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Assigns the identifier to this Message. Called by the {@link Server} on receiving, and by the {@link Client}
+     * numbering its texts.
+     */
+    void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * Retrieves what this Message stands for.
+     *
+     * @return the kind of this Message. Messages of {@link Client}-s not knowing kinds are {@link Kind#TEXT}.
+     */
+    public Kind getKind() {
+        return kind == null ? Kind.TEXT : kind;
+    }
+
     /**
      * Retrieves the timestamp when this Message was sent.
      *
-     * @return the timestamp then this Message was sent.
+     * @return the timestamp then this Message was sent, in epoch milliseconds, or 0 if not set.
      */
-    public ZonedDateTime getSent() {
+    public long getSent() {
         return sent;
     }
 
+    /**
+     * Retrieves the timestamp when this Message was received by the {@link Server}.
+     *
+     * @return the timestamp then this Message was received, in epoch milliseconds, or 0 if not set.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Sets the {@link Message#received} timestamp. Called by the {@link Server} on receiving.
+     */
+    void setReceived(long received) {
+        this.received = received;
+    }
+
     /**
      * Retrieves the Message's author name.
      *
@@ -51,6 +348,15 @@ public class Message implements Serializable {
         return sender;
     }
 
+    /**
+     * Retrieves the name of the room this Message is posted to or refers to.
+     *
+     * @return the room name. Messages of {@link Client}-s not knowing rooms are posted to {@link #DEFAULT_ROOM}.
+     */
+    public String getRoom() {
+        return room == null ? DEFAULT_ROOM : room;
+    }
+
     /**
      * Retrieves the content of the Message.
      *
@@ -64,12 +370,61 @@ public class Message implements Serializable {
      * Sets the {@link Message#sent} timestamp to current time moment.
      */
     public void setSent() {
-        sent = ZonedDateTime.now();
+        sent = System.currentTimeMillis();
     }
 
+    /**
+     * Displays this Message. The timestamp shown is the one of the {@link Server}, so the Messages of all senders
+     * are shown on the same clock; the sender's one is shown for a Message not passed through the {@link Server}.
+     * The display is built once and cached.
+     */
     @Override
     public String toString() {
-        return sent == null ? sender + " : " + message :
-                sent.format(FORMAT) + sender + " : " + message;
+        String display = this.display;
+        if (display == null) {
+            String room = getKind() == Kind.DIRECT ? "[@" + getRoom() + "] " :
+                    DEFAULT_ROOM.equals(getRoom()) ? "" : "[" + getRoom() + "] ";
+            String text = getKind() == Kind.TEXT || getKind() == Kind.DIRECT || getKind() == Kind.SEARCH ?
+                    sender + " : " + message :
+                    sender + " : " + getKind().name().toLowerCase(Locale.ENGLISH);
+            long time = received != 0 ? received : sent;
+            display = time == 0 ? room + text : FORMAT.format(Instant.ofEpochMilli(time)) + room + text;
+            this.display = display;
+        }
+        return display;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("sender", sender);
+        fields.put("message", message);
+        fields.put("sent", sent == 0 ? null : Instant.ofEpochMilli(sent).atZone(ZoneId.systemDefault()));
+        fields.put("id", id);
+        fields.put("kind", getKind().code());
+        fields.put("room", getRoom());
+        fields.put("received", received);
+        out.writeFields();
+    }
+
+    /**
+     * Reads the serialized form into a new Message, as the final fields of the deserialized instance cannot be set.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        try {
+            Kind kind = Kind.of(fields.get("kind", Kind.TEXT.code()));
+            if (kind == null) throw new InvalidObjectException("unknown message kind");
+            String room = (String) fields.get("room", null);
+            ZonedDateTime sent = (ZonedDateTime) fields.get("sent", null);
+            resolved = new Message(fields.get("id", 0L), kind, (String) fields.get("sender", null),
+                    room == null ? DEFAULT_ROOM : room, (String) fields.get("message", null),
+                    sent == null ? 0 : sent.toInstant().toEpochMilli(), fields.get("received", 0L));
+        } catch (ClassCastException | NullPointerException e) {
+            throw new InvalidObjectException("malformed message: " + e.getMessage());
+        }
+    }
+
+    private Object readResolve() {
+        return resolved;
     }
 }
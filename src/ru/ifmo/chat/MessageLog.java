@@ -0,0 +1,465 @@
+package ru.ifmo.chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Persistent append-only log of distributed {@link Message}-s kept in a directory on the local disk.
+ * <p>
+ * The log is split into segment files named after the identifier following the greatest one appended to the previous
+ * segments, which is normally the identifier of the first {@link Message} in the segment. A new
+ * segment is started once the current one reaches the segment size; the oldest segments are deleted to keep no more
+ * than the configured number of segments. Each record of a segment holds a single {@link Message}:
+ * <pre>
+ * int    length of the payload
+ * int    CRC32C checksum of the payload
+ * ...    payload, the {@link Message} encoded by the {@link Codec#BINARY} format
+ * </pre>
+ * {@link Message}-s are appended by the {@link MessageLog.Appender} in batches off the distribution path: the
+ * {@link Server.Distributor} only puts the frame it has already encoded into the queue of the {@link MessageLog}.
+ * As {@link Message}-s of different rooms are distributed in parallel, their identifiers grow along the log only
+ * roughly; {@link Message}-s of the same room are always appended in order.
+ * <p>
+ * Each segment but the current one is summarized by the least identifier of every room it holds, so paging through
+ * the history of a room skips the segments holding nothing of it. The summary of a segment is made up by the
+ * {@link MessageLog.Appender} as it rolls the segment over, or by the first read of the whole segment for the segments
+ * left by the previous run.
+ */
+class MessageLog {
+    /**
+     * Length in bytes of the record header.
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+    /**
+     * Extension of segment files.
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+    /**
+     * Maximal number of records appended by a single write.
+     */
+    private static final int BATCH_SIZE = 256;
+    /**
+     * Size of the buffer used to read a segment.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Policies of forcing appended records to the disk.
+     */
+    enum Sync {
+        /**
+         * Leave it to the operating system. Records survive a crash of the {@link Server} but may be lost on a crash
+         * of the machine.
+         */
+        NEVER,
+        /**
+         * Force after every appended batch.
+         */
+        BATCH,
+        /**
+         * Force at most once per the sync interval.
+         */
+        INTERVAL;
+
+        /**
+         * Parses the {@link MessageLog.Sync} from its case-insensitive name, as set in settings files.
+         */
+        static Sync of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A frame waiting to be appended together with the identifier and the room of its {@link Message}.
+     */
+    private record Entry(long id, String room, BufferPool.Chunk frame) {
+    }
+
+    /**
+     * Queued by {@link MessageLog.Appender#unblock()} to wake the {@link MessageLog.Appender} up on shutdown. Not
+     * appended.
+     */
+    private static final Entry WAKE_UP = new Entry(0, null, null);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int retention;
+    private final Sync sync;
+    private final long syncInterval;
+    private final BlockingQueue<Entry> queue;
+    /**
+     * Summaries of the segments but the current one: map the name of each room in the segment to its least identifier.
+     */
+    private final Map<Path, Map<String, Long>> index = new ConcurrentHashMap<>();
+    /**
+     * Summary of the current segment, kept by the {@link MessageLog.Appender} and put into the {@link MessageLog#index}
+     * once the segment is rolled over.
+     */
+    private final Map<String, Long> summary = new HashMap<>();
+
+    private Path current;
+    private FileChannel segment;
+    private long lastSynced;
+    private long lastId;
+
+    /**
+     * @param directory    directory holding the segment files.
+     * @param segmentSize  size in bytes a segment grows up to before a new one is started.
+     * @param retention    number of segments to keep.
+     * @param sync         policy of forcing appended records to the disk.
+     * @param syncInterval interval between forces of the {@link MessageLog.Sync#INTERVAL} policy, in milliseconds.
+     * @param capacity     number of frames that may wait to be appended.
+     */
+    MessageLog(Path directory, long segmentSize, int retention, Sync sync, long syncInterval, int capacity) {
+        this.directory = Objects.requireNonNull(directory);
+        if (segmentSize <= RECORD_HEADER_LENGTH) throw new IllegalArgumentException("segment size is too small");
+        if (retention <= 0) throw new IllegalArgumentException("retention must be positive: " + retention);
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+        this.sync = Objects.requireNonNull(sync);
+        this.syncInterval = syncInterval;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Opens the last segment for appending. A record torn by a crash at the end of the segment is cut off.
+     * As identifiers grow along the log only roughly, the last segment may hold lower identifiers than the previous
+     * ones; the greatest identifier of those is told by the name of the last segment, so they are not read.
+     *
+     * @param consumer receives every {@link Message} of the last segment, from the oldest to the newest.
+     * @return the greatest identifier of a {@link Message} in the log or 0 if the log is empty.
+     * @throws IOException in case the segment could not be opened.
+     */
+    long open(Consumer<Message> consumer) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = segments();
+        if (segments.isEmpty()) return 0;
+        Path last = segments.get(segments.size() - 1);
+        long end = scan(last, message -> {
+            lastId = Math.max(lastId, message.getId());
+            summarize(summary, message.getRoom(), message.getId());
+            consumer.accept(message);
+        });
+        current = last;
+        segment = FileChannel.open(last, StandardOpenOption.WRITE);
+        if (end < segment.size()) {
+            Log.warn("torn record cut off the message log: " + last + " at " + end);
+            segment.truncate(end);
+        }
+        segment.position(end);
+        lastId = Math.max(lastId, firstId(last) - 1);
+        return lastId;
+    }
+
+    /**
+     * Reads the segment record by record up to its end or up to the first torn or corrupted record.
+     *
+     * @param segment  the segment file to read.
+     * @param consumer receives every {@link Message} read.
+     * @return position in the segment where the valid records end.
+     * @throws IOException in case the segment could not be read.
+     */
+    private static long scan(Path segment, Consumer<Message> consumer) throws IOException {
+        long end = 0;
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment),
+                READ_BUFFER_SIZE))) {
+            byte[] payload = new byte[256];
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > Protocol.MAX_FRAME_LENGTH) break;
+                if (payload.length < length) payload = new byte[Math.max(length, 2 * payload.length)];
+                in.readFully(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+                consumer.accept(Codec.BINARY.decode(payload, 0, length));
+                end += RECORD_HEADER_LENGTH + length;
+            }
+        } catch (EOFException | StreamCorruptedException e) {
+            // the end of the valid records
+        }
+        return end;
+    }
+
+    /**
+     * Reads all the segments from the oldest to the newest, e.g. to rebuild what is derived from the log on start.
+     *
+     * @param consumer receives every {@link Message} of the log.
+     * @throws IOException in case the log could not be read.
+     */
+    void replay(Consumer<Message> consumer) throws IOException {
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            try {
+                read(segments.get(i), i < segments.size() - 1, consumer);
+            } catch (NoSuchFileException e) {
+                // deleted by the retention meanwhile
+            }
+        }
+    }
+
+    /**
+     * Reads the whole segment, summarizing it into the {@link MessageLog#index} unless it is summarized already.
+     *
+     * @param segment  the segment file to read.
+     * @param closed   whether the segment is known to be rolled over, i.e. a newer one is listed after it: the current
+     *                 segment keeps growing, so it is never summarized by a read.
+     * @param consumer receives every {@link Message} read.
+     * @throws IOException in case the segment could not be read.
+     */
+    private void read(Path segment, boolean closed, Consumer<Message> consumer) throws IOException {
+        if (!closed || index.containsKey(segment)) {
+            scan(segment, consumer);
+            return;
+        }
+        Map<String, Long> read = new HashMap<>();
+        scan(segment, message -> {
+            summarize(read, message.getRoom(), message.getId());
+            consumer.accept(message);
+        });
+        index.putIfAbsent(segment, Map.copyOf(read));
+    }
+
+    private static void summarize(Map<String, Long> summary, String room, long id) {
+        summary.merge(room, id, Math::min);
+    }
+
+    /**
+     * Reads a page of the {@link Message}-s posted to the room before the given one, looking through the segments
+     * from the newest to the oldest until the page is full. The segments summarized by the {@link MessageLog#index}
+     * as holding no {@link Message} of the room before the given one are not read.
+     *
+     * @param room   name of the room.
+     * @param before identifier of the {@link Message} the page precedes.
+     * @param limit  maximal number of {@link Message}-s in the page.
+     * @return the page ordered from the oldest to the newest {@link Message}.
+     * @throws IOException in case the log could not be read.
+     */
+    List<Message> page(String room, long before, int limit) throws IOException {
+        List<Path> segments = segments();
+        Deque<Message> page = new ArrayDeque<>(limit);
+        for (int i = segments.size() - 1; i >= 0 && page.size() < limit; i--) {
+            Map<String, Long> summary = index.get(segments.get(i));
+            if (summary != null && summary.getOrDefault(room, Long.MAX_VALUE) >= before) continue;
+            int wanted = limit - page.size();
+            Deque<Message> found = new ArrayDeque<>(wanted);
+            try {
+                read(segments.get(i), i < segments.size() - 1, message -> {
+                    if (message.getId() >= before || !room.equals(message.getRoom())) return;
+                    if (found.size() == wanted) found.removeFirst();
+                    found.addLast(message);
+                });
+            } catch (NoSuchFileException e) {
+                continue; // deleted by the retention meanwhile
+            }
+            while (!found.isEmpty()) {
+                page.addFirst(found.removeLast());
+            }
+        }
+        return new ArrayList<>(page);
+    }
+
+    /**
+     * Puts the frame into the queue of the {@link MessageLog}, waiting for room if the disk does not keep up.
+     *
+     * @param message the {@link Message}, its identifier assigned.
+     * @param frame   the {@link Message} encoded by {@link Codec#BINARY}, retained until appended.
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting.
+     */
+    void append(Message message, BufferPool.Chunk frame) throws InterruptedException {
+        frame.retain();
+        try {
+            queue.put(new Entry(message.getId(), message.getRoom(), frame));
+        } catch (InterruptedException e) {
+            frame.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lists the segment files ordered from the oldest to the newest.
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long firstId(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Starts a new segment named after the given identifier, summarizing the previous one into the
+     * {@link MessageLog#index}, and deletes the segments beyond the retention.
+     */
+    private void roll(long firstId) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", firstId, SEGMENT_SUFFIX));
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        // the texts of slower rooms alone may leave the name of the next segment taken by the current one
+        if (current != null && !current.equals(file)) {
+            index.put(current, Map.copyOf(summary));
+            summary.clear();
+        }
+        current = file;
+        segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.position(segment.size());
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size() - retention; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+        index.keySet().retainAll(segments.subList(Math.max(segments.size() - retention, 0), segments.size()));
+    }
+
+    /**
+     * Thread task to infinitely take frames from the queue of the {@link MessageLog} and to append them to the current
+     * segment. Forces the segment to the disk according to the {@link MessageLog.Sync} policy.
+     * On termination appends whatever is left in the queue and closes the segment. Not interrupted on shutdown, as an
+     * interrupt would close the segment amid a write: woken up by {@link MessageLog#WAKE_UP} instead, it finishes the
+     * batch in flight first.
+     * Supposed to be in one instance per {@link MessageLog}.
+     */
+    class Appender extends Worker {
+        private final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        private final ByteBuffer[] buffers = new ByteBuffer[2 * BATCH_SIZE];
+        private final ByteBuffer headers = ByteBuffer.allocateDirect(RECORD_HEADER_LENGTH * BATCH_SIZE);
+        private final CRC32C crc = new CRC32C();
+
+        @Override
+        protected void init() {
+            lastSynced = System.currentTimeMillis();
+            Log.info("message log opened: " + directory.toAbsolutePath());
+        }
+
+        @Override
+        protected void loop() throws IOException {
+            try {
+                Entry first = queue.poll(sync == Sync.INTERVAL ? syncInterval : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                if (first != null && first != WAKE_UP) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    batch.remove(WAKE_UP);
+                    write();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (sync == Sync.INTERVAL && System.currentTimeMillis() - lastSynced >= syncInterval) force();
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            // a FileChannel gets closed when used by an interrupted Thread
+            boolean interrupted = Thread.interrupted();
+            try {
+                while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                    batch.remove(WAKE_UP);
+                    if (!batch.isEmpty()) write();
+                }
+                if (segment != null) {
+                    force();
+                    segment.close();
+                }
+                Log.info("message log closed, last message " + lastId);
+            } finally {
+                discard();
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Releases the frames a failed write left unappended, in the batch and in the queue.
+         */
+        private void discard() {
+            queue.drainTo(batch);
+            for (Entry entry : batch) {
+                if (entry != WAKE_UP) entry.frame().release();
+            }
+            batch.clear();
+        }
+
+        @Override
+        protected boolean interruptOnShutdown() {
+            return false;
+        }
+
+        @Override
+        protected void unblock() {
+            // a full queue needs no waking up: the Appender is busy appending it
+            queue.offer(WAKE_UP);
+        }
+
+        /**
+         * Appends the batch by a single gathering write, starting a new segment first if the batch does not fit into
+         * the current one.
+         */
+        private void write() throws IOException {
+            headers.clear();
+            long size = 0;
+            int count = 0;
+            for (Entry entry : batch) {
+                ByteBuffer payload = entry.frame().buffer().slice(Protocol.HEADER_LENGTH,
+                        entry.frame().length() - Protocol.HEADER_LENGTH);
+                crc.reset();
+                crc.update(payload.duplicate());
+                ByteBuffer header = headers.slice(headers.position(), RECORD_HEADER_LENGTH);
+                header.putInt(0, payload.remaining()).putInt(4, (int) crc.getValue());
+                headers.position(headers.position() + RECORD_HEADER_LENGTH);
+                buffers[count++] = header;
+                buffers[count++] = payload;
+                size += RECORD_HEADER_LENGTH + payload.remaining();
+            }
+            if (segment == null || segment.position() > 0 && segment.position() + size > segmentSize) {
+                roll(lastId + 1);
+            }
+            long written = 0;
+            while (written < size) {
+                written += segment.write(buffers, 0, count);
+            }
+            for (Entry entry : batch) {
+                lastId = Math.max(lastId, entry.id());
+                summarize(summary, entry.room(), entry.id());
+                entry.frame().release();
+            }
+            batch.clear();
+            Arrays.fill(buffers, 0, count, null);
+            if (sync == Sync.BATCH) force();
+        }
+
+        private void force() throws IOException {
+            if (segment != null) segment.force(false);
+            lastSynced = System.currentTimeMillis();
+        }
+    }
+}
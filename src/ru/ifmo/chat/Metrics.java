@@ -0,0 +1,466 @@
+package ru.ifmo.chat;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms of the {@link Server}.
+ * <p>
+ * Counters are {@link LongAdder}-s, so the Threads of the hot path updating them concurrently do not contend.
+ * Latencies are recorded into {@link Histogram}-s in nanoseconds. Rates are sampled once a second by the
+ * {@link Metrics.Sampler}. The metrics are readable via JMX as the "ru.ifmo.chat:type=Server" MBean and as plain text
+ * lines "name value" served over HTTP at "/metrics" on the local interface.
+ */
+class Metrics implements MetricsMXBean {
+    private static final String NAME = "ru.ifmo.chat:type=Server";
+
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder droppedFrames = new LongAdder();
+    final LongAdder slowConsumers = new LongAdder();
+    /**
+     * Connections accepted, and those closed before completing the handshake as it was malformed or broken off, or
+     * as it took longer than the handshake timeout.
+     */
+    final LongAdder accepted = new LongAdder();
+    final LongAdder handshakeFailures = new LongAdder();
+    final LongAdder handshakeTimeouts = new LongAdder();
+    /**
+     * Connections closed as nothing was received from them for the heartbeat timeout.
+     */
+    final LongAdder idleEvictions = new LongAdder();
+    /**
+     * Messages dropped as their senders exceeded the rate limit.
+     */
+    final LongAdder rateLimited = new LongAdder();
+    /**
+     * Direct texts handled, and those whose recipient was not connected to this node.
+     */
+    final LongAdder directMessages = new LongAdder();
+    final LongAdder directMisses = new LongAdder();
+    /**
+     * Texts sent again by {@link Client}-s having missed the acknowledgement, dropped as already taken.
+     */
+    final LongAdder duplicates = new LongAdder();
+    /**
+     * Search requests answered.
+     */
+    final LongAdder searches = new LongAdder();
+    /**
+     * Texts left out of the search index as the queue of the indexer was full.
+     */
+    final LongAdder indexDropped = new LongAdder();
+    /**
+     * Times reading from a {@link Client} was held up as the message queue was full.
+     */
+    final LongAdder ingestStalls = new LongAdder();
+    /**
+     * Texts relayed to the other nodes of the {@link Cluster} and received from them.
+     */
+    final LongAdder relayedOut = new LongAdder();
+    final LongAdder relayedIn = new LongAdder();
+    /**
+     * Texts relayed to this node more than once and dropped.
+     */
+    final LongAdder relayDuplicates = new LongAdder();
+    /**
+     * Texts dropped from a full queue of a link to another node of the {@link Cluster}.
+     */
+    final LongAdder relayDropped = new LongAdder();
+    /**
+     * From receiving a text to taking it from the message queue for distribution.
+     */
+    final Histogram queueLatency = new Histogram();
+    /**
+     * From taking a text from the message queue to having it queued for all the members of its room.
+     */
+    final Histogram fanOutLatency = new Histogram();
+    /**
+     * From accepting a connection to registering its {@link Client}.
+     */
+    final Histogram handshakeLatency = new Histogram();
+    /**
+     * From receiving a search request to having the texts found queued for the {@link Client}.
+     */
+    final Histogram searchLatency = new Histogram();
+
+    private final LongSupplier connectedClients;
+    private final LongSupplier queueDepth;
+    private final Supplier<BufferPool> buffers;
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile double acceptedPerSecond;
+    private HttpServer endpoint;
+
+    /**
+     * @param connectedClients gauge of the number of connected {@link Client}-s.
+     * @param queueDepth       gauge of the number of {@link Message}-s waiting in the message queue.
+     * @param buffers          the {@link BufferPool} of the frames, null until configured.
+     */
+    Metrics(LongSupplier connectedClients, LongSupplier queueDepth, Supplier<BufferPool> buffers) {
+        this.connectedClients = connectedClients;
+        this.queueDepth = queueDepth;
+        this.buffers = buffers;
+    }
+
+    /**
+     * Registers the metrics as an MBean of the platform MBean server.
+     */
+    void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(NAME);
+        if (server.isRegistered(name)) server.unregisterMBean(name);
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Starts serving the metrics over HTTP at "/metrics" on the local interface.
+     *
+     * @param port port to listen to.
+     * @throws IOException in case the port could not be bound.
+     */
+    void serve(int port) throws IOException {
+        endpoint = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            byte[] body = report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        endpoint.start();
+        Log.info("metrics served at http://localhost:" + endpoint.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Stops serving the metrics over HTTP and unregisters the MBean.
+     */
+    void close() {
+        if (endpoint != null) endpoint.stop(0);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            Log.error(e);
+        }
+    }
+
+    /**
+     * Describes all the metrics as text lines "name value".
+     */
+    String report() {
+        StringBuilder report = new StringBuilder();
+        line(report, "chat_connected_clients", getConnectedClients());
+        line(report, "chat_queue_depth", getQueueDepth());
+        line(report, "chat_messages_in_total", getMessagesIn());
+        line(report, "chat_messages_out_total", getMessagesOut());
+        line(report, "chat_messages_in_per_second", getMessagesInPerSecond());
+        line(report, "chat_messages_out_per_second", getMessagesOutPerSecond());
+        line(report, "chat_bytes_in_total", getBytesIn());
+        line(report, "chat_bytes_out_total", getBytesOut());
+        line(report, "chat_dropped_frames_total", getDroppedFrames());
+        line(report, "chat_slow_consumers_total", getSlowConsumers());
+        line(report, "chat_accepted_total", getAccepted());
+        line(report, "chat_accepted_per_second", getAcceptedPerSecond());
+        line(report, "chat_handshake_failures_total", getHandshakeFailures());
+        line(report, "chat_handshake_timeouts_total", getHandshakeTimeouts());
+        line(report, "chat_idle_evictions_total", getIdleEvictions());
+        line(report, "chat_rate_limited_total", getRateLimited());
+        line(report, "chat_direct_messages_total", getDirectMessages());
+        line(report, "chat_direct_misses_total", getDirectMisses());
+        line(report, "chat_duplicates_total", getDuplicates());
+        line(report, "chat_searches_total", getSearches());
+        line(report, "chat_index_dropped_total", getIndexDropped());
+        line(report, "chat_ingest_stalls_total", getIngestStalls());
+        line(report, "chat_relayed_out_total", getRelayedOut());
+        line(report, "chat_relayed_in_total", getRelayedIn());
+        line(report, "chat_relay_duplicates_total", getRelayDuplicates());
+        line(report, "chat_relay_dropped_total", getRelayDropped());
+        line(report, "chat_log_lines_dropped_total", getLogLinesDropped());
+        line(report, "chat_buffer_pool_bytes", getBufferPoolBytes());
+        line(report, "chat_buffers_lent", getBuffersLent());
+        line(report, "chat_buffers_acquired_total", getBuffersAcquired());
+        line(report, "chat_buffers_unpooled_total", getBuffersUnpooled());
+        line(report, "chat_buffer_leaks_total", getBufferLeaks());
+        latencies(report, "chat_queue_latency_micros", queueLatency);
+        latencies(report, "chat_fan_out_latency_micros", fanOutLatency);
+        latencies(report, "chat_handshake_latency_micros", handshakeLatency);
+        latencies(report, "chat_search_latency_micros", searchLatency);
+        return report.toString();
+    }
+
+    private static void line(StringBuilder report, String name, Object value) {
+        report.append(name).append(' ').append(value instanceof Double ?
+                String.format(Locale.ROOT, "%.1f", (Double) value) : value).append('\n');
+    }
+
+    private static void latencies(StringBuilder report, String name, Histogram histogram) {
+        double[] values = micros(histogram);
+        line(report, name + "{quantile=\"0.5\"}", values[0]);
+        line(report, name + "{quantile=\"0.99\"}", values[1]);
+        line(report, name + "{quantile=\"0.999\"}", values[2]);
+        line(report, name + "_max", values[3]);
+        line(report, name + "_count", histogram.count());
+    }
+
+    private static double[] micros(Histogram histogram) {
+        return new double[]{histogram.percentile(50) / 1000.0, histogram.percentile(99) / 1000.0,
+                histogram.percentile(99.9) / 1000.0, histogram.max() / 1000.0};
+    }
+
+    @Override
+    public long getConnectedClients() {
+        return connectedClients.getAsLong();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.getAsLong();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public double getAcceptedPerSecond() {
+        return acceptedPerSecond;
+    }
+
+    @Override
+    public long getHandshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    @Override
+    public long getHandshakeTimeouts() {
+        return handshakeTimeouts.sum();
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getDirectMisses() {
+        return directMisses.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public long getIndexDropped() {
+        return indexDropped.sum();
+    }
+
+    @Override
+    public long getIngestStalls() {
+        return ingestStalls.sum();
+    }
+
+    @Override
+    public long getRelayedOut() {
+        return relayedOut.sum();
+    }
+
+    @Override
+    public long getRelayedIn() {
+        return relayedIn.sum();
+    }
+
+    @Override
+    public long getRelayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    @Override
+    public long getRelayDropped() {
+        return relayDropped.sum();
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return Log.dropped();
+    }
+
+    @Override
+    public long getBufferPoolBytes() {
+        BufferPool pool = buffers.get();
+        return pool == null ? 0 : pool.reserved();
+    }
+
+    @Override
+    public long getBuffersLent() {
+        BufferPool pool = buffers.get();
+        return pool == null ? 0 : pool.lent();
+    }
+
+    @Override
+    public long getBuffersAcquired() {
+        BufferPool pool = buffers.get();
+        return pool == null ? 0 : pool.acquired();
+    }
+
+    @Override
+    public long getBuffersUnpooled() {
+        BufferPool pool = buffers.get();
+        return pool == null ? 0 : pool.unpooled();
+    }
+
+    @Override
+    public long getBufferLeaks() {
+        BufferPool pool = buffers.get();
+        return pool == null ? 0 : pool.leaks();
+    }
+
+    @Override
+    public double[] getQueueLatencyMicros() {
+        return micros(queueLatency);
+    }
+
+    @Override
+    public double[] getFanOutLatencyMicros() {
+        return micros(fanOutLatency);
+    }
+
+    @Override
+    public double[] getHandshakeLatencyMicros() {
+        return micros(handshakeLatency);
+    }
+
+    @Override
+    public double[] getSearchLatencyMicros() {
+        return micros(searchLatency);
+    }
+
+    @Override
+    public void resetLatencies() {
+        queueLatency.reset();
+        fanOutLatency.reset();
+        handshakeLatency.reset();
+        searchLatency.reset();
+    }
+
+    /**
+     * Thread task to infinitely sample the counters once a second and to work out the rates.
+     * Supposed to be in one instance per {@link Metrics}.
+     */
+    class Sampler extends Worker {
+        private long lastIn;
+        private long lastOut;
+        private long lastAccepted;
+        private long lastTime;
+
+        @Override
+        protected void init() {
+            lastIn = messagesIn.sum();
+            lastOut = messagesOut.sum();
+            lastAccepted = accepted.sum();
+            lastTime = System.nanoTime();
+        }
+
+        @Override
+        protected void loop() {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long in = messagesIn.sum();
+            long out = messagesOut.sum();
+            long connections = accepted.sum();
+            long time = System.nanoTime();
+            double seconds = (double) (time - lastTime) / TimeUnit.SECONDS.toNanos(1);
+            messagesInPerSecond = (in - lastIn) / seconds;
+            messagesOutPerSecond = (out - lastOut) / seconds;
+            acceptedPerSecond = (connections - lastAccepted) / seconds;
+            lastIn = in;
+            lastOut = out;
+            lastAccepted = connections;
+            lastTime = time;
+        }
+
+        @Override
+        protected void stop() {
+
+        }
+    }
+}
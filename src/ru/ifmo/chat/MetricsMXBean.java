@@ -0,0 +1,110 @@
+package ru.ifmo.chat;
+
+/**
+ * Management interface the {@link Metrics} of the {@link Server} are exposed by via JMX.
+ * Counters are totals since the start of the {@link Server}; rates are per second over the last second; latencies are
+ * in microseconds since the start or since the last {@link MetricsMXBean#resetLatencies()}.
+ */
+public interface MetricsMXBean {
+    long getConnectedClients();
+
+    long getQueueDepth();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDroppedFrames();
+
+    long getSlowConsumers();
+
+    long getAccepted();
+
+    double getAcceptedPerSecond();
+
+    long getHandshakeFailures();
+
+    long getHandshakeTimeouts();
+
+    long getIdleEvictions();
+
+    long getRateLimited();
+
+    long getDirectMessages();
+
+    long getDirectMisses();
+
+    long getDuplicates();
+
+    long getSearches();
+
+    long getIndexDropped();
+
+    long getIngestStalls();
+
+    long getRelayedOut();
+
+    long getRelayedIn();
+
+    long getRelayDuplicates();
+
+    long getRelayDropped();
+
+    long getLogLinesDropped();
+
+    /**
+     * Off-heap memory taken up by the pool of the frame buffers, in bytes.
+     */
+    long getBufferPoolBytes();
+
+    /**
+     * Pooled frame buffers in use: a number growing beyond the frames queued and cached for the history hints at
+     * buffers lost without being released, which are counted by {@link MetricsMXBean#getBufferLeaks()} once garbage
+     * collected.
+     */
+    long getBuffersLent();
+
+    long getBuffersAcquired();
+
+    /**
+     * Frame buffers allocated on the heap, as they were too large for the pool or the pool was taken up.
+     */
+    long getBuffersUnpooled();
+
+    long getBufferLeaks();
+
+    /**
+     * Latency percentiles of waiting in the message queue, from receiving a text to taking it for distribution:
+     * p50, p99, p999 and the maximum.
+     */
+    double[] getQueueLatencyMicros();
+
+    /**
+     * Latency percentiles of distributing a text to all the members of its room: p50, p99, p999 and the maximum.
+     */
+    double[] getFanOutLatencyMicros();
+
+    /**
+     * Latency percentiles of the handshake, from accepting a connection to registering its {@link Client}: p50, p99,
+     * p999 and the maximum.
+     */
+    double[] getHandshakeLatencyMicros();
+
+    /**
+     * Latency percentiles of answering a search request: p50, p99, p999 and the maximum.
+     */
+    double[] getSearchLatencyMicros();
+
+    /**
+     * Forgets the latencies recorded so far.
+     */
+    void resetLatencies();
+}
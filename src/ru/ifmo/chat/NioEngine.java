@@ -0,0 +1,600 @@
+package ru.ifmo.chat;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine of the {@link Server} (setting "engine=nio").
+ * A fixed set of {@link NioEngine.EventLoop}-s serves all connected {@link Client}-s, each {@link NioEngine.EventLoop}
+ * owning a {@link Selector} and handling accept, read and write readiness of its channels. The number of threads
+ * does not depend on the number of connected {@link Client}-s.
+ * The first {@link NioEngine.EventLoop} also accepts new connections and spreads them over all
+ * {@link NioEngine.EventLoop}-s in a round-robin manner. Handshakes are read as their bytes arrive, like any other
+ * frame, so a slow {@link Client} holds up nobody; a connection not completing the handshake in time is closed.
+ * Version 1 {@link Client}-s are refused, as their object stream is not cut into frames, see {@link Protocol}.
+ * An {@link NioEngine.EventLoop} never waits for room in the message queue of the {@link Server}: a connection whose
+ * {@link Message} does not fit stops being read until the queue makes room, so the {@link Client} is pushed back on by
+ * TCP flow control while other connections are served as usual.
+ * Buffers a connection needs beyond the shared read buffer, to write out its frames or to keep an incomplete frame
+ * till the next read, are taken from the {@link Server#buffers} and given back as soon as they are empty.
+ */
+class NioEngine {
+    /**
+     * Length of the pending connections queue of the server channel.
+     */
+    private static final int BACKLOG = 1024;
+    /**
+     * How often reading from connections held up by the full message queue is retried, in milliseconds.
+     */
+    private static final long RESUME_MILLIS = 10;
+    /**
+     * How long accepting connections is paused after a failed accept, e.g. for lack of file descriptors, in
+     * milliseconds.
+     */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    /**
+     * Size of the buffer the frames are copied into to be written to a channel, in bytes.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    private final Server server;
+    private final int port;
+    private final EventLoop[] loops;
+    /**
+     * Maximal number of frames copied into the output buffer of a channel to be written at once.
+     */
+    private final int batchSize;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param server    the {@link Server} to pass received {@link Message}-s to.
+     * @param port      the port to accept connections at.
+     * @param threads   number of {@link NioEngine.EventLoop}-s to run.
+     * @param batchSize maximal number of frames written to a channel at once.
+     * @throws IOException in case a {@link Selector} could not be opened.
+     */
+    NioEngine(Server server, int port, int threads, int batchSize) throws IOException {
+        this.server = Objects.requireNonNull(server);
+        this.port = port;
+        this.batchSize = batchSize;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(i == 0);
+        }
+    }
+
+    /**
+     * Starts up all {@link NioEngine.EventLoop}-s in the {@link WorkerPool}.
+     */
+    void start(WorkerPool pool) {
+        for (EventLoop loop : loops) {
+            pool.start(loop);
+        }
+    }
+
+    /**
+     * Stops accepting new connections, leaving the connected ones served as usual.
+     */
+    void stopAccepting() {
+        EventLoop acceptor = loops[0];
+        acceptor.execute(() -> {
+            try {
+                acceptor.serverChannel.close();
+            } catch (IOException e) {
+                Log.error(e);
+            }
+        });
+    }
+
+    /**
+     * Thread task to infinitely select ready channels of its {@link Selector} and to process them.
+     * Other Threads interact with the channels of the {@link NioEngine.EventLoop} only through
+     * {@link NioEngine.EventLoop#execute(Runnable)}.
+     */
+    private class EventLoop extends Worker {
+        private final boolean acceptor;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * Buffer shared by all channels of this {@link NioEngine.EventLoop} to read into. Big enough to hold any
+         * frame, so idle connections do not hold read buffers of their own.
+         */
+        private final ByteBuffer readBuffer =
+                ByteBuffer.allocate(Protocol.HEADER_LENGTH + Protocol.MAX_FRAME_LENGTH);
+        /**
+         * Connections not read from until their held up {@link Message} fits into the message queue.
+         */
+        private final List<ChannelConnection> paused = new ArrayList<>();
+        private ServerSocketChannel serverChannel;
+        /**
+         * Whether accepting connections is paused after a failed accept, and the moment it is resumed at, by
+         * {@link System#nanoTime()}.
+         */
+        private boolean acceptPaused;
+        private long acceptResumed;
+
+        public EventLoop(boolean acceptor) throws IOException {
+            this.acceptor = acceptor;
+            this.selector = Selector.open();
+        }
+
+        @Override
+        protected void init() throws IOException {
+            if (!acceptor) return;
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("server started");
+        }
+
+        @Override
+        protected void loop() throws IOException {
+            if (paused.isEmpty() && !acceptPaused) {
+                selector.select();
+            } else {
+                selector.select(RESUME_MILLIS);
+                resume();
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("event loop task failed", e);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept(key);
+                    continue;
+                }
+                ChannelConnection connection = (ChannelConnection) key.attachment();
+                try {
+                    if (key.isReadable()) connection.read();
+                    if (key.isValid() && key.isWritable()) connection.write();
+                } catch (IOException | RuntimeException e) {
+                    Log.error(e);
+                    connection.fail();
+                }
+            }
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+
+        @Override
+        protected void unblock() {
+            selector.wakeup();
+        }
+
+        /**
+         * Retries the held up {@link Message}-s of the paused connections, resuming reading from those whose
+         * {@link Message} fits into the message queue now. Resumes accepting connections once its pause is over.
+         */
+        private void resume() {
+            if (acceptPaused && System.nanoTime() - acceptResumed >= 0) {
+                acceptPaused = false;
+                serverChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+            }
+            Iterator<ChannelConnection> connections = paused.iterator();
+            while (connections.hasNext()) {
+                ChannelConnection connection = connections.next();
+                try {
+                    if (connection.resume()) connections.remove();
+                } catch (IOException e) {
+                    Log.error(e);
+                    connections.remove();
+                    connection.fail();
+                }
+            }
+        }
+
+        /**
+         * Schedules the task to be run by the Thread of this {@link NioEngine.EventLoop}.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Accepts all pending connections and hands them over to the {@link NioEngine.EventLoop}-s.
+         * A failed accept is logged and pauses accepting for {@link NioEngine#ACCEPT_RETRY_MILLIS}, so the loop
+         * neither ends nor spins on a lasting failure, e.g. running out of file descriptors.
+         */
+        private void accept(SelectionKey key) {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    server.metrics.accepted.increment();
+                    long now = System.nanoTime();
+                    try {
+                        channel.configureBlocking(false);
+                    } catch (IOException e) {
+                        Log.error(e);
+                        close(channel);
+                        continue;
+                    }
+                    EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+                    SocketChannel accepted = channel;
+                    loop.execute(() -> loop.register(accepted, now));
+                }
+            } catch (IOException e) {
+                Log.error("failed to accept a connection", e);
+                key.interestOps(0);
+                acceptPaused = true;
+                acceptResumed = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_RETRY_MILLIS);
+            }
+        }
+
+        private void register(SocketChannel channel, long accepted) {
+            try {
+                ChannelConnection connection = new ChannelConnection(this, channel, accepted);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                server.handshakeDeadline(() -> execute(connection::expire));
+            } catch (IOException e) {
+                Log.error(e);
+                close(channel);
+            }
+        }
+
+        private void close(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.error(e);
+            }
+        }
+    }
+
+    /**
+     * {@link Connection} over a non-blocking {@link SocketChannel} served by a single {@link NioEngine.EventLoop}.
+     * Collected into {@link Server#clients} as soon as the {@link Client} introduces itself with its {@link UUID}.
+     * Outgoing frames are taken from the outbound queue of the {@link Server.ClientEntity} and written by the
+     * {@link NioEngine.EventLoop} once the channel is ready.
+     */
+    private class ChannelConnection implements Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        /**
+         * Moment the connection was accepted, by {@link System#nanoTime()}.
+         */
+        private final long accepted;
+        /**
+         * Buffer the frames taken from the outbound queue are copied into and written from. Held while there is
+         * anything to write only.
+         */
+        private BufferPool.Chunk output;
+        /**
+         * Frame taken from the outbound queue but not copied into the output buffer in full yet, and the number of
+         * its bytes copied so far.
+         */
+        private BufferPool.Chunk copying;
+        private int copied;
+        private SelectionKey key;
+        /**
+         * Bytes left over from the previous read, if any: an incomplete frame, or the frames following a held up
+         * {@link Message}.
+         */
+        private BufferPool.Chunk pending;
+        /**
+         * {@link Message} admitted by the {@link Server} but not fitting into the message queue yet. Reading is paused
+         * while it is held up.
+         */
+        private Server.MessageEntity stalled;
+        /**
+         * Version of the {@link Protocol} agreed on and the {@link UUID} string the {@link Client} introduced itself
+         * with. Set as soon as they arrive, as the hello that follows may arrive later.
+         */
+        private int version;
+        private byte[] uuid;
+        private Codec codec;
+        private Server.ClientEntity client;
+
+        public ChannelConnection(EventLoop loop, SocketChannel channel, long accepted) {
+            this.loop = Objects.requireNonNull(loop);
+            this.channel = Objects.requireNonNull(channel);
+            this.accepted = accepted;
+        }
+
+        @Override
+        public Codec codec() {
+            return codec;
+        }
+
+        @Override
+        public void flush() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    writeScheduled.set(false);
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        Log.error(e);
+                        fail();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Closes the channel by the {@link NioEngine.EventLoop}, so the {@link NioEngine.EventLoop} never finds it
+         * closed in the middle of a read or a write, e.g. when the {@link Client} is disconnected by a heartbeat.
+         */
+        @Override
+        public void close() {
+            loop.execute(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.error(e);
+                }
+                free();
+            });
+        }
+
+        @Override
+        public String address() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "closed channel";
+            }
+        }
+
+        /**
+         * Reads all available bytes and passes the complete frames to the {@link Server}.
+         * Called by the {@link NioEngine.EventLoop} only.
+         */
+        private void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            restorePending(buffer);
+            int read = channel.read(buffer);
+            if (read > 0) server.metrics.bytesIn.add(read);
+            buffer.flip();
+            process(buffer);
+            if (read == -1) fail();
+        }
+
+        /**
+         * Passes every complete frame in the buffer to the {@link Server} until a {@link Message} does not fit into
+         * the message queue. In that case holds the {@link Message} up and pauses reading. Keeps whatever is left of
+         * the buffer for later. Acknowledges the texts taken from the buffer at once.
+         */
+        private void process(ByteBuffer buffer) throws IOException {
+            if (client == null) handshake(buffer);
+            while (client != null && stalled == null && buffer.remaining() >= Protocol.HEADER_LENGTH) {
+                int length = buffer.getInt(buffer.position());
+                Protocol.checkLength(length);
+                if (buffer.remaining() < Protocol.HEADER_LENGTH + length) break;
+                int offset = buffer.position() + Protocol.HEADER_LENGTH;
+                Message received = codec.decode(buffer.array(), buffer.arrayOffset() + offset, length);
+                buffer.position(offset + length);
+                Server.MessageEntity admitted = server.admit(client, received);
+                if (admitted != null && !server.offer(admitted)) stalled = admitted;
+            }
+            if (client != null) server.acknowledge(client);
+            if (buffer.hasRemaining()) {
+                pending = server.buffers.acquire(buffer.remaining());
+                pending.buffer().put(buffer).flip();
+            }
+            if (stalled != null && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.paused.add(this);
+                server.metrics.ingestStalls.increment();
+            }
+        }
+
+        /**
+         * Retries the held up {@link Message}, then the frames read after it. Called by the
+         * {@link NioEngine.EventLoop} only.
+         *
+         * @return true if the connection is not paused anymore: reading is resumed, or the connection is closed.
+         */
+        private boolean resume() throws IOException {
+            if (!key.isValid()) return true;
+            if (!server.offer(stalled)) return false;
+            stalled = null;
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            restorePending(buffer);
+            buffer.flip();
+            process(buffer);
+            if (stalled != null) return false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            return true;
+        }
+
+        /**
+         * Puts the bytes left over from the previous read back into the buffer.
+         */
+        private void restorePending(ByteBuffer buffer) {
+            if (pending == null) return;
+            buffer.put(pending.buffer());
+            pending.release();
+            pending = null;
+        }
+
+        /**
+         * Interest in read readiness, unless reading is paused.
+         */
+        private int reading() {
+            return stalled == null ? SelectionKey.OP_READ : 0;
+        }
+
+        /**
+         * Consumes the {@link Client}'s introduction from the buffer, and then its hello, as far as they have fully
+         * arrived. Once the handshake is complete registers the {@link Client} at the {@link Server}. See
+         * {@link Protocol} for the handshake details.
+         */
+        private void handshake(ByteBuffer buffer) throws IOException {
+            if (uuid == null) {
+                if (!buffer.hasRemaining()) return;
+                int first = Byte.toUnsignedInt(buffer.get(buffer.position()));
+                boolean versioned = Protocol.isVersion(first);
+                if (buffer.remaining() < (versioned ? 1 : 0) + Protocol.UUID_LENGTH) return;
+                if (versioned) {
+                    buffer.get();
+                    version = server.negotiate(first);
+                    answer(new byte[]{(byte) version});
+                } else {
+                    throw new StreamCorruptedException("version 1 clients are served by the blocking engine only");
+                }
+                uuid = new byte[Protocol.UUID_LENGTH];
+                buffer.get(uuid);
+            }
+            String name = "";
+            long resumeAfter = 0;
+            Set<Protocol.Capability> agreed;
+            if (version >= Protocol.HELLO_VERSION) {
+                if (buffer.remaining() < Protocol.HEADER_LENGTH) return;
+                int length = buffer.getInt(buffer.position());
+                Protocol.checkLength(length);
+                if (buffer.remaining() < Protocol.HEADER_LENGTH + length) return;
+                int offset = buffer.position() + Protocol.HEADER_LENGTH;
+                Message hello = Codec.BINARY.decode(buffer.array(), buffer.arrayOffset() + offset, length);
+                buffer.position(offset + length);
+                agreed = server.agree(hello);
+                name = hello.getSender();
+                resumeAfter = hello.getId();
+                answer(Codec.BINARY.encode(Message.hello("", Protocol.Capability.format(agreed))));
+            } else {
+                agreed = Protocol.implied(version);
+            }
+            codec = Protocol.codec(version, agreed);
+            client = server.register(Protocol.uuid(uuid), name, agreed, resumeAfter, this);
+            // a full shard holds the join up like any other message, see process
+            Server.MessageEntity admitted = server.admit(client, server.entrance(client));
+            if (admitted != null && !server.offer(admitted)) stalled = admitted;
+            server.metrics.handshakeLatency.record(System.nanoTime() - accepted);
+        }
+
+        /**
+         * Writes a part of the handshake. The handshake is short enough to fit into the send buffer of a fresh
+         * connection, so it is written at once.
+         */
+        private void answer(byte[] bytes) throws IOException {
+            if (channel.write(ByteBuffer.wrap(bytes)) != bytes.length) {
+                throw new IOException("failed to answer the handshake: " + address());
+            }
+        }
+
+        /**
+         * Closes the connection unless the handshake is complete. Called by the {@link NioEngine.EventLoop} once the
+         * handshake timeout passes.
+         */
+        private void expire() {
+            if (client != null || !key.isValid()) return;
+            server.metrics.handshakeTimeouts.increment();
+            Log.warn("handshake timed out: " + address());
+            key.cancel();
+            close();
+        }
+
+        /**
+         * Takes frames from the outbound queue of the {@link Server.ClientEntity} and writes them until the queue is
+         * empty or the channel stops accepting bytes. In the latter case subscribes for write readiness.
+         * Up to {@link NioEngine#batchSize} frames are copied into the output buffer at once and passed to the channel
+         * by a single write; a frame counts as written once copied, and its buffer is released. Signals of
+         * {@link ChannelConnection#flush()} coming while a write is already scheduled are coalesced into it. Called by
+         * the {@link NioEngine.EventLoop} only.
+         */
+        private void write() throws IOException {
+            if (key == null || !key.isValid()) return;
+            while (true) {
+                if (output == null) output = server.buffers.acquire(OUTPUT_BUFFER_SIZE);
+                ByteBuffer buffer = output.buffer();
+                copy(buffer);
+                if (buffer.position() == 0) {
+                    output.release();
+                    output = null;
+                    key.interestOps(reading());
+                    return;
+                }
+                buffer.flip();
+                server.metrics.bytesOut.add(channel.write(buffer));
+                buffer.compact();
+                if (buffer.position() > 0) {
+                    key.interestOps(reading() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies frames from the outbound queue into the buffer until the buffer is full, the queue is empty or
+         * {@link NioEngine#batchSize} frames are copied. A frame not fitting in full is finished by the next copy.
+         */
+        private void copy(ByteBuffer buffer) {
+            int count = 0;
+            while (count < batchSize && buffer.hasRemaining()) {
+                if (copying == null && (copying = client.outbound.poll()) == null) return;
+                int length = Math.min(buffer.remaining(), copying.length() - copied);
+                buffer.put(buffer.position(), copying.buffer(), copied, length);
+                buffer.position(buffer.position() + length);
+                copied += length;
+                if (copied < copying.length()) return;
+                copying.release();
+                copying = null;
+                copied = 0;
+                count++;
+                client.written.incrementAndGet();
+                server.metrics.messagesOut.increment();
+            }
+        }
+
+        /**
+         * Gives the buffers of the closed connection back to the {@link Server#buffers}. Called by the
+         * {@link NioEngine.EventLoop} only.
+         */
+        private void free() {
+            if (output != null) output.release();
+            if (copying != null) copying.release();
+            if (pending != null) pending.release();
+            output = copying = pending = null;
+        }
+
+        /**
+         * Drops the broken or closed connection.
+         */
+        private void fail() {
+            if (key != null) key.cancel();
+            free();
+            if (client != null) {
+                server.disconnect(client);
+            } else {
+                server.metrics.handshakeFailures.increment();
+                close();
+            }
+        }
+    }
+}
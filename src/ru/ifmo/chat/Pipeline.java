@@ -0,0 +1,98 @@
+package ru.ifmo.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-producer queue split into a fixed number of shards, each consumed by its own Thread.
+ * Every element is put into the shard chosen by its key, so elements sharing a key are taken in the order they were
+ * put, while elements with different keys are processed in parallel.
+ * Shards are array-backed and bounded, so putting and taking elements allocates nothing.
+ *
+ * @param <T> type of the elements.
+ */
+class Pipeline<T> {
+    private final List<BlockingQueue<T>> shards;
+
+    /**
+     * @param shards   number of shards.
+     * @param capacity capacity of each shard.
+     */
+    Pipeline(int shards, int capacity) {
+        if (shards <= 0) throw new IllegalArgumentException("number of shards must be positive: " + shards);
+        this.shards = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            this.shards.add(new ArrayBlockingQueue<>(capacity));
+        }
+    }
+
+    /**
+     * Retrieves the number of shards.
+     */
+    int shards() {
+        return shards.size();
+    }
+
+    /**
+     * Finds the shard the elements with the key go to.
+     */
+    int shard(int key) {
+        return Math.floorMod(key ^ (key >>> 16), shards.size());
+    }
+
+    /**
+     * Puts the element into the shard chosen by the key, waiting for room if the shard is full.
+     *
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting.
+     */
+    void put(int key, T element) throws InterruptedException {
+        shards.get(shard(key)).put(element);
+    }
+
+    /**
+     * Puts the element into the shard chosen by the key unless the shard is full.
+     *
+     * @return true if the element was put.
+     */
+    boolean offer(int key, T element) {
+        return shards.get(shard(key)).offer(element);
+    }
+
+    /**
+     * Puts the element into every shard, waiting for room until the deadline if a shard is full. Used to pass a
+     * marker through all the shards behind the elements put so far.
+     *
+     * @param deadline moment to give up waiting at, by {@link System#nanoTime()}.
+     * @return true if the element was put into every shard.
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting.
+     */
+    boolean offerAll(T element, long deadline) throws InterruptedException {
+        for (BlockingQueue<T> shard : shards) {
+            if (!shard.offer(element, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next element from the shard, waiting for it if the shard is empty.
+     *
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting.
+     */
+    T take(int shard) throws InterruptedException {
+        return shards.get(shard).take();
+    }
+
+    /**
+     * Retrieves the total number of elements in all shards.
+     */
+    int size() {
+        int size = 0;
+        for (BlockingQueue<T> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+}
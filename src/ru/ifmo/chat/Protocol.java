@@ -0,0 +1,266 @@
+package ru.ifmo.chat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Wire format shared by {@link Server} and {@link Client}.
+ * <p>
+ * Right after the connection is set the {@link Client} introduces itself: a single byte with the most recent version
+ * of the protocol it knows, followed by its {@link UUID} string of {@link Protocol#UUID_LENGTH} bytes. The
+ * {@link Server} answers with a single byte holding the version to use, which is the most recent one known to both
+ * sides. Up to version 3 the version also stands for the {@link Codec} of the connection.
+ * A {@link Client} deployed before the versions were introduced sends its {@link UUID} string only and is recognized
+ * by the first byte being a character of the {@link UUID} string rather than a version number. It is a version 1
+ * {@link Client}: rather than frames it speaks a Java object stream for the whole connection, which both sides start
+ * by the {@link Protocol#STREAM_HEADER} right after the introduction, see {@link Codec#SERIALIZED}. Only the
+ * "blocking" engine of the {@link Server} serves such {@link Client}-s, as the stream cannot be cut into frames.
+ * <p>
+ * Since version 4 both sides go on with a {@link Message.Kind#HELLO} frame encoded by {@link Codec#BINARY}: the
+ * {@link Client} sends its name and the {@link Protocol.Capability}-s it has, the {@link Server} answers with those it
+ * agrees to. The agreed {@link Protocol.Capability}-s settle the {@link Codec} of the connection. Capabilities unknown
+ * to a side are ignored by it, so new ones may be added without bumping the version. A {@link Client} reconnecting
+ * to a restarted {@link Server} tells the identifier of the text to resume {@link Message#DEFAULT_ROOM} after by its
+ * hello, and the ones of the other rooms by the requests to join them.
+ * <p>
+ * Afterwards both sides exchange frames: a {@link Protocol#HEADER_LENGTH}-byte big-endian payload length followed by
+ * the payload encoded by the agreed {@link Codec}.
+ * Every frame is self-contained, so the incoming byte stream can be cut into {@link Message}-s without holding a
+ * long-lived object stream per connection (as required by the {@link NioEngine}).
+ */
+public final class Protocol {
+    /**
+     * Length in bytes of the {@link UUID} string a {@link Client} introduces itself with.
+     */
+    public static final int UUID_LENGTH = 36;
+    /**
+     * Length in bytes of the frame header holding the payload length.
+     */
+    public static final int HEADER_LENGTH = 4;
+    /**
+     * Upper limit for a frame payload length. Frames declaring a larger payload are treated as corrupted.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    /**
+     * The most recent version of the protocol.
+     */
+    public static final int VERSION = 4;
+    /**
+     * Version introducing the {@link Message.Kind#HELLO} exchange.
+     */
+    public static final int HELLO_VERSION = 4;
+    /**
+     * Header a Java object stream starts with: the magic number and the version of the serialization protocol.
+     */
+    static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+    /**
+     * Classes allowed to appear in the object stream of a version 1 {@link Client}. Anything else is rejected before
+     * being instantiated. The sent timestamp of a {@link Message} is serialized by the proxy of the java.time
+     * classes, resolved into a ZonedDateTime.
+     */
+    private static final ObjectInputFilter STREAM_FILTER = ObjectInputFilter.Config.createFilter(
+            "ru.ifmo.chat.Message;java.time.Ser;java.time.ZonedDateTime;maxdepth=4;!*");
+
+    /**
+     * Optional features of the protocol a side may have, announced by the {@link Message.Kind#HELLO} exchange.
+     * Listed in the text of the {@link Message.Kind#HELLO} by their lower-case names, separated by spaces.
+     */
+    public enum Capability {
+        /**
+         * Frames are encoded by {@link Codec#COMPRESSED} rather than by {@link Codec#BINARY}.
+         */
+        COMPRESSION,
+        /**
+         * The side answers {@link Message.Kind#PING} with {@link Message.Kind#PONG}, so it may be checked for being
+         * alive.
+         */
+        HEARTBEATS,
+        /**
+         * The {@link Client} takes {@link Message.Kind#RESUME} notices of a {@link Server} going away and hands the
+         * identifier of the notice back in its hello and its requests to join the rooms once reconnected, so the
+         * {@link Server} replays the texts missed meanwhile rather than the whole recent history.
+         */
+        RESUME,
+        /**
+         * The {@link Client} takes {@link Message.Kind#DIRECT} texts, so other users may address it by its name.
+         */
+        DIRECT,
+        /**
+         * The {@link Client} numbers its texts and sends them again until the {@link Server} acknowledges them by
+         * {@link Message.Kind#ACK}, the {@link Server} dropping the ones it has already got. The {@link Client} in turn
+         * acknowledges the texts it has received, so the {@link Server} keeps its delivery cursor.
+         */
+        ACKS;
+
+        /**
+         * Parses the list of capabilities, skipping unknown ones.
+         */
+        public static Set<Capability> parse(String list) {
+            Set<Capability> capabilities = EnumSet.noneOf(Capability.class);
+            for (String name : list.trim().split("\\s+")) {
+                for (Capability capability : values()) {
+                    if (capability.name().equalsIgnoreCase(name)) capabilities.add(capability);
+                }
+            }
+            return capabilities;
+        }
+
+        /**
+         * Lists the capabilities as the text of a {@link Message.Kind#HELLO}.
+         */
+        public static String format(Set<Capability> capabilities) {
+            StringJoiner list = new StringJoiner(" ");
+            capabilities.forEach(capability -> list.add(capability.name().toLowerCase(Locale.ROOT)));
+            return list.toString();
+        }
+    }
+
+    /**
+     * Outcome of the {@link Client}'s side of the handshake: the {@link Codec} to use for the connection and the
+     * {@link Protocol.Capability}-s agreed with the {@link Server}.
+     */
+    public record Handshake(Codec codec, Set<Capability> agreed) {
+    }
+
+    private Protocol() {
+    }
+
+    /**
+     * Checks whether the first byte of a {@link Client}'s introduction is a version number rather than the first
+     * character of a version 1 {@link Client}'s {@link UUID} string. Version 1 is never announced by a number.
+     */
+    public static boolean isVersion(int first) {
+        return first >= Codec.BINARY.version() && first <= VERSION;
+    }
+
+    /**
+     * Picks the version for a connection with a {@link Client} knowing versions up to the given one.
+     *
+     * @param compression whether the {@link Server} is willing to use the {@link Codec#COMPRESSED} format. If not,
+     *                    {@link Client}-s preceding the {@link Message.Kind#HELLO} exchange are held to
+     *                    {@link Codec#BINARY}.
+     */
+    public static int negotiate(int version, boolean compression) {
+        int agreed = Math.min(version, VERSION);
+        return agreed >= HELLO_VERSION || compression ? agreed : Math.min(agreed, Codec.BINARY.version());
+    }
+
+    /**
+     * Retrieves the {@link Protocol.Capability}-s implied by a version preceding the {@link Message.Kind#HELLO}
+     * exchange: version 3 has all the capabilities known at the time, earlier versions have none.
+     */
+    public static Set<Capability> implied(int version) {
+        return version >= Codec.COMPRESSED.version() ?
+                EnumSet.of(Capability.COMPRESSION, Capability.HEARTBEATS) : EnumSet.noneOf(Capability.class);
+    }
+
+    /**
+     * Picks the {@link Codec} for a connection of the given version having the agreed {@link Protocol.Capability}-s.
+     */
+    public static Codec codec(int version, Set<Capability> agreed) {
+        if (version < HELLO_VERSION) return Codec.of(version);
+        return agreed.contains(Capability.COMPRESSION) ? Codec.COMPRESSED : Codec.BINARY;
+    }
+
+    /**
+     * Makes up the {@link UUID} to identify a {@link Client} from the {@link UUID} string it introduced itself with.
+     */
+    public static UUID uuid(byte[] introduced) {
+        return UUID.nameUUIDFromBytes(introduced);
+    }
+
+    /**
+     * Introduces the nameless {@link Client} having all the {@link Protocol.Capability}-s to the {@link Server} and
+     * awaits the {@link Server}'s choice of the {@link Codec}.
+     *
+     * @return the {@link Codec} to use for the connection.
+     * @throws IOException in case the {@link Server} answers with an unknown version or a malformed hello.
+     */
+    public static Codec hello(DataOutputStream out, DataInputStream in, UUID uuid) throws IOException {
+        return hello(out, in, uuid, "", EnumSet.allOf(Capability.class), 0).codec();
+    }
+
+    /**
+     * Introduces the {@link Client} to the {@link Server} by its name and the {@link Protocol.Capability}-s it has,
+     * e.g. without {@link Protocol.Capability#COMPRESSION} to opt out of the {@link Codec#COMPRESSED} format, and
+     * awaits the {@link Server}'s choice of the {@link Codec} and of the {@link Protocol.Capability}-s. A
+     * {@link Server} preceding the {@link Message.Kind#HELLO} exchange picks the {@link Codec} by itself and has the
+     * {@link Protocol.Capability}-s implied by its version.
+     *
+     * @param resumeAfter identifier of the text to resume {@link Message#DEFAULT_ROOM} after, as told by a
+     *                    {@link Message.Kind#RESUME} notice or the most recent one of the room received, or 0 to get
+     *                    the recent history of the room.
+     * @return the {@link Codec} and the {@link Protocol.Capability}-s agreed for the connection.
+     * @throws IOException in case the {@link Server} answers with an unknown version or a malformed hello.
+     */
+    public static Handshake hello(DataOutputStream out, DataInputStream in, UUID uuid, String name,
+                                  Set<Capability> capabilities, long resumeAfter) throws IOException {
+        out.writeByte(VERSION);
+        out.write(uuid.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        int version = in.readUnsignedByte();
+        if (!isVersion(version)) throw new StreamCorruptedException("unsupported protocol version: " + version);
+        if (version < HELLO_VERSION) return new Handshake(Codec.of(version), implied(version));
+        Message hello = Message.hello(name, Capability.format(capabilities));
+        hello.setId(resumeAfter);
+        write(out, Codec.BINARY, hello);
+        Message welcome = read(in, Codec.BINARY);
+        if (welcome.getKind() != Message.Kind.HELLO) {
+            throw new StreamCorruptedException("expected hello, got " + welcome.getKind());
+        }
+        Set<Capability> agreed = Capability.parse(welcome.getMessage());
+        return new Handshake(codec(version, agreed), agreed);
+    }
+
+    /**
+     * Checks the payload length read from a frame header.
+     *
+     * @param length the payload length to check.
+     * @throws StreamCorruptedException in case the length is out of bounds.
+     */
+    public static void checkLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Opens an object stream reading {@link Message}-s only, see {@link Codec#SERIALIZED}. Reads the
+     * {@link Protocol#STREAM_HEADER}, blocking until it arrives.
+     *
+     * @throws IOException in case the stream does not start with the header.
+     */
+    static ObjectInputStream objectStream(InputStream in) throws IOException {
+        ObjectInputStream objects = new ObjectInputStream(in);
+        objects.setObjectInputFilter(STREAM_FILTER);
+        return objects;
+    }
+
+    /**
+     * Writes the {@link Message} as a single frame and flushes the stream.
+     */
+    public static void write(DataOutputStream out, Codec codec, Message message) throws IOException {
+        out.write(codec.encode(message));
+        out.flush();
+    }
+
+    /**
+     * Reads a single frame from the stream, blocking until it fully arrives.
+     *
+     * @return decoded {@link Message}.
+     * @throws IOException in case the stream is closed or the frame is corrupted.
+     */
+    public static Message read(DataInputStream in, Codec codec) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return codec.decode(payload, 0, length);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.ifmo.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded collection keeping the most recently added elements. Once full, each added element replaces the oldest one.
+ * Thread-safe.
+ *
+ * @param <T> type of the elements.
+ */
+class RingBuffer<T> {
+    private final Object[] elements;
+    /**
+     * Total number of elements ever added. The next element goes to {@code added % elements.length}.
+     */
+    private long added;
+
+    /**
+     * @param capacity maximal number of elements kept.
+     */
+    RingBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.elements = new Object[capacity];
+    }
+
+    /**
+     * Adds the element, replacing the oldest one if the buffer is full.
+     *
+     * @return the element replaced or null.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T add(T element) {
+        int slot = (int) (added++ % elements.length);
+        T replaced = (T) elements[slot];
+        elements[slot] = element;
+        return replaced;
+    }
+
+    /**
+     * Retrieves the kept elements ordered from the oldest to the newest.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> snapshot() {
+        int size = (int) Math.min(added, elements.length);
+        List<T> snapshot = new ArrayList<>(size);
+        for (long i = added - size; i < added; i++) {
+            snapshot.add((T) elements[(int) (i % elements.length)]);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,235 @@
+package ru.ifmo.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * In-memory inverted index of the most recent texts, searched by keywords, by sender and by time range.
+ * <p>
+ * Every text indexed gets the next document number and is kept in a ring of the configured capacity, the oldest text
+ * being evicted once the ring is full. The index maps each token of the texts, as well as the lower-case name of each
+ * sender, to the posting list of the documents having it: a plain array of document numbers. As documents are numbered
+ * in the order they are indexed, every posting list is sorted by construction, so a new document is appended to the
+ * end and an evicted one is cut off the head, and lists are intersected by binary search. Tokens are the lower-case
+ * runs of letters and digits of a text.
+ * <p>
+ * The index is not persisted: it is rebuilt from the {@link MessageLog} on start. Not thread-safe: supposed to be used
+ * by a single Thread, e.g. the {@link Server}'s indexer.
+ */
+class SearchIndex {
+    /**
+     * Tokens shorter or longer than these are not indexed.
+     */
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    /**
+     * Prefix of the keys the senders are indexed by, which can not be mistaken for a token.
+     */
+    private static final char SENDER_KEY = '\0';
+
+    /**
+     * A search request parsed from the text of a {@link Message.Kind#SEARCH}: the keywords every text found has to
+     * contain, and optionally the sender and the range of the {@link Message#getReceived()} timestamps, bounds
+     * included. Terms of the text are separated by spaces: "from:name" sets the sender, "after:millis" and
+     * "before:millis" set the time range in epoch milliseconds, the rest are keywords.
+     */
+    record Query(Set<String> keywords, String sender, long after, long before) {
+        /**
+         * @throws IllegalArgumentException in case a time bound is not a number.
+         */
+        static Query parse(String text) {
+            Set<String> keywords = new LinkedHashSet<>();
+            String sender = null;
+            long after = Long.MIN_VALUE;
+            long before = Long.MAX_VALUE;
+            for (String term : text.trim().split("\\s+")) {
+                if (term.startsWith("from:") && term.length() > 5) {
+                    sender = term.substring(5);
+                } else if (term.startsWith("after:")) {
+                    after = Long.parseLong(term.substring(6));
+                } else if (term.startsWith("before:")) {
+                    before = Long.parseLong(term.substring(7));
+                } else {
+                    keywords.addAll(tokens(term));
+                }
+            }
+            return new Query(keywords, sender, after, before);
+        }
+
+        boolean isEmpty() {
+            return keywords.isEmpty() && sender == null && after == Long.MIN_VALUE && before == Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Sorted array of document numbers, the live ones being at positions from start to size.
+     */
+    private static final class Postings {
+        private long[] documents = new long[4];
+        private int start;
+        private int size;
+
+        void add(long document) {
+            // a token repeated in the text is posted once
+            if (size > start && documents[size - 1] == document) return;
+            if (size == documents.length) {
+                // reuses the room left by the evicted documents unless the list is mostly live
+                if (start >= size / 2) {
+                    System.arraycopy(documents, start, documents, 0, size - start);
+                    size -= start;
+                    start = 0;
+                } else {
+                    documents = Arrays.copyOf(documents, 2 * documents.length);
+                }
+            }
+            documents[size++] = document;
+        }
+
+        /**
+         * Cuts the document off the head of the list.
+         *
+         * @return true if no documents are left.
+         */
+        boolean evict(long document) {
+            if (size > start && documents[start] == document) start++;
+            return start == size;
+        }
+
+        boolean contains(long document) {
+            return Arrays.binarySearch(documents, start, size, document) >= 0;
+        }
+
+        int length() {
+            return size - start;
+        }
+    }
+
+    private final Message[] documents;
+    private final Map<String, Postings> postings = new HashMap<>();
+    /**
+     * Number of the next document to index.
+     */
+    private long next;
+
+    /**
+     * @param capacity number of the most recent texts to keep indexed.
+     */
+    SearchIndex(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("search capacity must be positive");
+        this.documents = new Message[capacity];
+    }
+
+    /**
+     * Splits the text into the lower-case tokens it is indexed by.
+     */
+    static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (part && start < 0) start = i;
+            if (!part && start >= 0) {
+                int length = i - start;
+                if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String senderKey(String sender) {
+        return SENDER_KEY + sender.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Indexes the text, evicting the oldest one if the index is full.
+     */
+    void add(Message message) {
+        int slot = (int) (next % documents.length);
+        if (documents[slot] != null) evict(next - documents.length, documents[slot]);
+        documents[slot] = message;
+        for (String token : tokens(message.getMessage())) {
+            postings.computeIfAbsent(token, key -> new Postings()).add(next);
+        }
+        postings.computeIfAbsent(senderKey(message.getSender()), key -> new Postings()).add(next);
+        next++;
+    }
+
+    private void evict(long document, Message message) {
+        for (String token : tokens(message.getMessage())) {
+            cut(token, document);
+        }
+        cut(senderKey(message.getSender()), document);
+    }
+
+    private void cut(String key, long document) {
+        Postings list = postings.get(key);
+        if (list != null && list.evict(document)) postings.remove(key);
+    }
+
+    /**
+     * Number of texts indexed.
+     */
+    int size() {
+        return (int) Math.min(next, documents.length);
+    }
+
+    /**
+     * Finds the most recent texts matching the query.
+     *
+     * @param query   the {@link SearchIndex.Query} to match.
+     * @param visible tells the rooms whose texts may be found.
+     * @param limit   maximal number of texts to find.
+     * @return the texts found ordered from the oldest to the newest.
+     */
+    List<Message> search(Query query, Predicate<String> visible, int limit) {
+        if (query.isEmpty() || limit <= 0) return List.of();
+        List<Postings> lists = new ArrayList<>();
+        for (String keyword : query.keywords()) {
+            lists.add(postings.get(keyword));
+        }
+        if (query.sender() != null) lists.add(postings.get(senderKey(query.sender())));
+        if (lists.contains(null)) return List.of();
+        lists.sort((a, b) -> Integer.compare(a.length(), b.length()));
+        List<Message> found = new ArrayList<>(Math.min(limit, 64));
+        if (lists.isEmpty()) {
+            // a time range only: look through the documents from the newest
+            for (long document = next - 1; document >= next - size() && found.size() < limit; document--) {
+                collect(document, query, visible, found);
+            }
+        } else {
+            Postings shortest = lists.get(0);
+            for (int i = shortest.size - 1; i >= shortest.start && found.size() < limit; i--) {
+                long document = shortest.documents[i];
+                if (matches(document, lists)) collect(document, query, visible, found);
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    private static boolean matches(long document, List<Postings> lists) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(document)) return false;
+        }
+        return true;
+    }
+
+    private void collect(long document, Query query, Predicate<String> visible, List<Message> found) {
+        Message message = Objects.requireNonNull(documents[(int) (document % documents.length)]);
+        long received = message.getReceived();
+        if (received < query.after() || received > query.before() || !visible.test(message.getRoom())) return;
+        found.add(message);
+    }
+}
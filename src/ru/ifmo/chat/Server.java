@@ -1,19 +1,27 @@
 package ru.ifmo.chat;
 
+import javax.management.JMException;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
@@ -21,7 +29,9 @@ import java.util.stream.Stream;
  * Server class for the Chat messaging program. Corresponds to the {@link Client} class.
  * {@link Server} is designed to hold connections with any {@link Client}-s attached to it; to receive
  * {@link Message}-s from any connected {@link Client} independently; and to send out each of these {@link Message}-s
- * to all {@link Client}-s connected to this Chat (to this {@link Server}), except the original author.
+ * to all {@link Client}-s connected to this Chat (to this {@link Server}) and subscribed to the {@link Message}'s room,
+ * except the original author.
+ * Several {@link Server}-s may form a {@link Cluster} sharing their rooms, see the "cluster.*" settings.
  */
 public class Server {
     /**
@@ -29,6 +39,33 @@ public class Server {
      */
     private static final Path SETTINGS = Paths.get("resources/Server.properties");
 
+    /**
+     * Size of the buffer collecting a batch of frames written to a {@link Client} by the "blocking" engine.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Length of the pending connections queue of the server socket of the "blocking" engine, so a storm of
+     * {@link Client}-s reconnecting at once is not refused.
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * Duration of a tick of the {@link Server#timers}, in milliseconds, and the number of its slots.
+     */
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 512;
+
+    /**
+     * How often the outbound queues are checked for being written out while draining, in milliseconds.
+     */
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    /**
+     * Least interval between warnings of a {@link Client} exceeding its rate limit, in nanoseconds.
+     */
+    private static final long RATE_WARNING_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
     /**
      * Listing of mandatory settings from the settings file that are required to startup the {@link Server}.
      */
@@ -54,30 +91,247 @@ public class Server {
     private final ConcurrentHashMap<UUID, ClientEntity> clients = new ConcurrentHashMap<>();
 
     /**
-     * Thread-safe blocking queue to collect {@link Message}-s coming from connected {@link Client}-s (via
+     * Index of rooms: maps the name of each room to the set of {@link Server.ClientEntity}-es subscribed to it.
+     * Rooms appear with the first subscriber and vanish with the last one.
+     * Used by {@link Server.Distributor} to send a {@link Message} out to members of its room only.
+     */
+    private final ConcurrentHashMap<String, Set<ClientEntity>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Index of names: maps the name of each {@link Client} having the {@link Protocol.Capability#DIRECT} to the set of
+     * its connections, as the same user may be connected from several devices. Kept by
+     * {@link Server#register(UUID, String, Set, long, Connection)} and {@link Server#disconnect(ClientEntity)}.
+     * Used by {@link Server.Distributor} to send a {@link Message.Kind#DIRECT} text out to its recipient without
+     * looking through all the {@link Server#clients}.
+     */
+    private final ConcurrentHashMap<String, Set<ClientEntity>> names = new ConcurrentHashMap<>();
+
+    /**
+     * Thread-safe sharded queue to collect {@link Message}-s coming from connected {@link Client}-s (via
      * {@link Server.Receiver}-s) and to send them out to all connected participants of the Chat
-     * (via {@link Server.Distributor}).
+     * (via one {@link Server.Distributor} per shard).
+     * Sharded by the room, so {@link Message}-s posted to the same room keep their order.
+     * The number of shards and their capacity are set by the "pipeline.shards" (0 for one per core) and
+     * "pipeline.capacity" settings. A full shard holds up reading from the {@link Client}-s posting to it rather than
+     * growing.
+     */
+    private Pipeline<MessageEntity> messageQueue;
+
+    /**
+     * Source of identifiers assigned to received {@link Message}-s. Holds the number of the last identifier's
+     * sequence, which is the identifier itself unless this {@link Server} is a node of a {@link Cluster}.
+     */
+    private final AtomicLong messageIds = new AtomicLong();
+
+    /**
+     * Other nodes the texts posted to this {@link Server} are relayed to and received from. Set up by the
+     * "cluster.nodes" and "cluster.node" settings; null if this {@link Server} runs alone.
+     */
+    private Cluster cluster;
+
+    /**
+     * Persistent log every distributed {@link Message} is appended to. Kept in the directory set by the "log.dir"
+     * setting; null if the setting is empty.
+     */
+    private MessageLog log;
+
+    /**
+     * Cache of the most recent {@link Message}-s of each room, replayed to every {@link Client} joining the room.
+     * Holds up to "history.size" {@link Message}-s per room. Warmed up from the last segment of the {@link Server#log}
+     * on start, so {@link Client}-s reconnecting after a restart are served from memory as well.
+     * The cache of a room is only touched by the {@link Server.Distributor} of the room's shard.
+     */
+    private final ConcurrentHashMap<String, RingBuffer<MessageEntity>> history = new ConcurrentHashMap<>();
+
+    /**
+     * Number of {@link Message}-s cached per room ("history.size" setting). 0 disables the replay.
+     */
+    private int historySize;
+
+    /**
+     * Maximal number of {@link Message}-s answering a single request for older history ("history.pageSize" setting).
+     */
+    private int historyPageSize;
+
+    /**
+     * Requests for older history waiting to be served from the {@link Server#log} by the {@link Server.Historian}.
+     * Bounded by the "history.capacity" setting; requests beyond it are rejected.
+     */
+    private BlockingQueue<MessageEntity> historyRequests;
+
+    /**
+     * Inverted index of the most recent texts, holding up to "search.size" texts. Rebuilt from the {@link Server#log}
+     * on start and touched by the {@link Server.Indexer} only. Null if the "search.size" setting is 0.
+     */
+    private SearchIndex index;
+
+    /**
+     * Maximal number of texts answering a single search request ("search.limit" setting).
      */
-    private final LinkedBlockingQueue<MessageEntity> messageQueue = new LinkedBlockingQueue<>();
+    private int searchLimit;
+
+    /**
+     * Texts to index and search requests waiting for the {@link Server.Indexer}, in the order they are distributed
+     * and received. Bounded by the "search.capacity" setting: texts and search requests beyond it are dropped, so a
+     * lagging {@link Server.Indexer} never holds up the distribution.
+     */
+    private BlockingQueue<MessageEntity> indexQueue;
+
+    /**
+     * Counters, gauges and latency histograms of this {@link Server}, readable via JMX and, if the "metrics.port"
+     * setting is set, over HTTP.
+     */
+    final Metrics metrics = new Metrics(clients::size, () -> messageQueue == null ? 0 : messageQueue.size(),
+            () -> this.buffers);
 
     /**
      * Overall holder for {@link Server} settings.
      */
     private final Properties properties = new Properties();
 
+    /**
+     * Runs the {@link Worker}-s serving the whole {@link Server}: {@link Server.Greeter}, {@link Server.Distributor},
+     * the {@link NioEngine}'s event loops, the {@link Server#timers} and the links of the {@link Server#cluster}.
+     */
+    private WorkerPool workers;
+
+    /**
+     * Runs a {@link Server.Receiver} per connected {@link Client} (the "blocking" engine only). The kind of Threads is
+     * configured by the "workers" setting; the pooled kind bounds the number of {@link Client}-s served at once, the
+     * connections accepted above the bound wait for a Thread until their handshake times out.
+     */
+    private WorkerPool clientWorkers;
+
+    /**
+     * Runs a {@link Server.Writer} per connected {@link Client} (the "blocking" engine only), on the same kind of
+     * Threads as the {@link Server#clientWorkers}, except virtual ones for the pooled kind: a {@link Server.Writer} is
+     * started for a {@link Client} already registered, so it must not wait for a Thread the Receivers hold.
+     */
+    private WorkerPool writerWorkers;
+
+    /**
+     * Whichever of the engines accepts the connections: the {@link Server.Greeter} of the "blocking" engine or the
+     * {@link NioEngine}.
+     */
+    private Greeter greeter;
+    private NioEngine nio;
+
+    /**
+     * How long the {@link Server} going away waits for the {@link Message}-s on their way to the {@link Client}-s to be
+     * written out, in nanoseconds ("shutdown.drainMillis" setting, in milliseconds).
+     */
+    private long drainTimeout;
+
+    /**
+     * Set once the {@link Server} starts going away: {@link Message}-s received afterwards are dropped.
+     */
+    private volatile boolean draining;
+
+    /**
+     * Counted down by each {@link Server.Distributor} once it takes the marker passed through its shard of the
+     * {@link Server#messageQueue} while draining.
+     */
+    private volatile CountDownLatch flushed;
+
+    /**
+     * Texts recently taken from the {@link Client}-s having {@link Protocol.Capability#ACKS}, to drop those sent again
+     * after a missed acknowledgement. Remembers each text for the "acks.dedupMillis" setting at least, up to
+     * "acks.dedupCapacity" texts per window. Null if the "acks.dedupMillis" setting is 0.
+     */
+    private DedupWindow dedup;
+
+    /**
+     * Capacity of the outbound queue of each {@link Server.ClientEntity} ("outbound.capacity" setting).
+     */
+    private int outboundCapacity;
+
+    /**
+     * Maximal number of frames written to a {@link Client} at once before flushing ("outbound.batchSize" setting).
+     */
+    private int outboundBatch;
+
+    /**
+     * How long a {@link Server.Writer} waits for more frames to join a batch before flushing it, in nanoseconds
+     * ("outbound.lingerMicros" setting, in microseconds). 0 flushes as soon as the outbound queue is empty.
+     */
+    private long outboundLinger;
+
+    /**
+     * What to do when the outbound queue of a {@link Server.ClientEntity} is full ("outbound.overflow" setting).
+     */
+    private Overflow overflow;
+
+    /**
+     * Pool of the off-heap buffers the frames are encoded into, taking up to the "buffers.capacity" setting, in bytes.
+     * 0 keeps the frames on the heap.
+     */
+    BufferPool buffers;
+
+    /**
+     * Whether the {@link Codec#COMPRESSED} format is agreed to on handshakes ("compression" setting).
+     */
+    private boolean compression = true;
+
+    /**
+     * How long a connection may take to complete the handshake before it is closed, in nanoseconds
+     * ("handshake.timeoutMillis" setting, in milliseconds). 0 disables the timeout.
+     */
+    private long handshakeTimeout;
+
+    /**
+     * How long a {@link Client} may keep silent before it is pinged, in nanoseconds ("heartbeat.intervalMillis"
+     * setting, in milliseconds). 0 disables heartbeats.
+     */
+    private long heartbeatInterval;
+
+    /**
+     * How long a {@link Client} may keep silent before it is considered dead and disconnected, in nanoseconds
+     * ("heartbeat.timeoutMillis" setting, in milliseconds).
+     */
+    private long heartbeatTimeout;
+
+    /**
+     * Runs the handshake timeouts and the heartbeats of all connected {@link Client}-s on a single Thread.
+     */
+    private TimerWheel timers;
+
+    /**
+     * Heartbeat sent to silent {@link Client}-s. Encoded by the {@link Server#timers} Thread only.
+     */
+    private final MessageEntity ping = new MessageEntity(null, Message.ping());
+
+    /**
+     * Number of texts and requests for older history a {@link Client} may send per second in the long run
+     * ("ratelimit.messagesPerSecond" setting), and in a burst ("ratelimit.burst" setting). 0 disables the limit.
+     */
+    private double rateLimit;
+    private int rateBurst;
+
+    public Server() {
+    }
+
+    /**
+     * Creates a {@link Server} with the given settings instead of those of the {@link Server#SETTINGS} file.
+     * The {@link Server} is not started; used to exercise its parts in isolation, e.g. by benchmarks.
+     */
+    Server(Properties settings) {
+        properties.putAll(settings);
+    }
+
     /**
      * Entry point for starting up a {@link Server}
      */
     public static void main(String[] args) {
-        new Server().start();
+        new Server().start(args);
     }
 
     /**
      * Initializes the {@link Server} properties by reading the {@link Server#SETTINGS} file.
      * In case of missing a mandatory setting requests the user for its value and updates the {@link Server#SETTINGS}
-     * file.
+     * file. Then applies "name=value" overrides given as arguments, e.g. to run several nodes of a {@link Cluster}
+     * from the same directory.
      */
-    private void init() throws InitializationException {
+    private void init(String[] args) throws InitializationException {
         Scanner scanner = new Scanner(System.in);
         try (BufferedReader reader = Files.newBufferedReader(SETTINGS)) {
             properties.load(reader);
@@ -104,196 +358,1554 @@ public class Server {
                 throw new InitializationException("Server settings were not properly set");
             }
         }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) throw new InitializationException("expected name=value argument: " + arg);
+            properties.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+        }
+    }
+
+    /**
+     * Applies the settings of the logging, the workers, the pipeline, the outbound queues, the handshakes, the
+     * draining, the acknowledgements, the rate limits, the history cache, the search index, the heartbeats and the
+     * {@link Cluster}.
+     *
+     * @throws IllegalArgumentException in case a setting has an invalid value.
+     */
+    void configure() {
+        Log.setLevel(Log.Level.of(properties.getProperty("logging.level", "info")));
+        WorkerPool.Mode mode = WorkerPool.Mode.of(properties.getProperty("workers", "platform"));
+        clientWorkers = new WorkerPool("client", mode,
+                Integer.parseInt(properties.getProperty("workers.poolSize", "256")));
+        writerWorkers = new WorkerPool("writer", mode == WorkerPool.Mode.POOLED ? WorkerPool.Mode.VIRTUAL : mode, 0);
+        int shards = Integer.parseInt(properties.getProperty("pipeline.shards", "0"));
+        messageQueue = new Pipeline<>(shards > 0 ? shards : Runtime.getRuntime().availableProcessors(),
+                Integer.parseInt(properties.getProperty("pipeline.capacity", "65536")));
+        outboundCapacity = Integer.parseInt(properties.getProperty("outbound.capacity", "1024"));
+        outboundBatch = Integer.parseInt(properties.getProperty("outbound.batchSize", "64"));
+        if (outboundBatch <= 0) throw new IllegalArgumentException("outbound.batchSize must be positive");
+        outboundLinger = TimeUnit.MICROSECONDS.toNanos(
+                Long.parseLong(properties.getProperty("outbound.lingerMicros", "1000")));
+        overflow = Overflow.valueOf(properties.getProperty("outbound.overflow", "drop_oldest")
+                .trim().toUpperCase(Locale.ROOT));
+        buffers = new BufferPool(Long.parseLong(properties.getProperty("buffers.capacity", "67108864")));
+        compression = Boolean.parseBoolean(properties.getProperty("compression", "true").trim());
+        handshakeTimeout = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(properties.getProperty("handshake.timeoutMillis", "5000")));
+        drainTimeout = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(properties.getProperty("shutdown.drainMillis", "5000")));
+        long dedupWindow = Long.parseLong(properties.getProperty("acks.dedupMillis", "60000"));
+        if (dedupWindow > 0) {
+            dedup = new DedupWindow(dedupWindow, TimeUnit.MILLISECONDS,
+                    Integer.parseInt(properties.getProperty("acks.dedupCapacity", "1048576")));
+        }
+        historySize = Integer.parseInt(properties.getProperty("history.size", "100"));
+        historyPageSize = Integer.parseInt(properties.getProperty("history.pageSize", "50"));
+        if (historyPageSize <= 0) throw new IllegalArgumentException("history.pageSize must be positive");
+        historyRequests = new ArrayBlockingQueue<>(
+                Integer.parseInt(properties.getProperty("history.capacity", "1024")));
+        int searchSize = Integer.parseInt(properties.getProperty("search.size", "100000"));
+        if (searchSize > 0) {
+            index = new SearchIndex(searchSize);
+            searchLimit = Integer.parseInt(properties.getProperty("search.limit", "20"));
+            if (searchLimit <= 0) throw new IllegalArgumentException("search.limit must be positive");
+            indexQueue = new ArrayBlockingQueue<>(Integer.parseInt(properties.getProperty("search.capacity", "65536")));
+        }
+        rateLimit = Double.parseDouble(properties.getProperty("ratelimit.messagesPerSecond", "50"));
+        rateBurst = Integer.parseInt(properties.getProperty("ratelimit.burst", "100"));
+        if (rateLimit > 0 && rateBurst <= 0) throw new IllegalArgumentException("ratelimit.burst must be positive");
+        heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(properties.getProperty("heartbeat.intervalMillis", "10000")));
+        heartbeatTimeout = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(properties.getProperty("heartbeat.timeoutMillis", "30000")));
+        if (heartbeatInterval > 0 && heartbeatTimeout <= heartbeatInterval) {
+            throw new IllegalArgumentException("heartbeat.timeoutMillis must exceed heartbeat.intervalMillis");
+        }
+        timers = new TimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_SLOTS);
+        String nodes = properties.getProperty("cluster.nodes", "").trim();
+        if (!nodes.isEmpty()) {
+            cluster = new Cluster(this, Cluster.parse(nodes),
+                    Integer.parseInt(properties.getProperty("cluster.node", "0").trim()),
+                    Integer.parseInt(properties.getProperty("cluster.capacity", "65536")),
+                    Integer.parseInt(properties.getProperty("cluster.batchSize", "256")),
+                    TimeUnit.MICROSECONDS.toNanos(
+                            Long.parseLong(properties.getProperty("cluster.lingerMicros", "1000"))),
+                    Integer.parseInt(properties.getProperty("cluster.window", "65536")));
+        }
     }
 
-    private void start() {
+    private void start(String[] args) {
         try {
-            init();
+            init(args);
         } catch (InitializationException e) {
             System.out.println("Failed to initialize server settings. Check the settings in " +
                                SETTINGS.toAbsolutePath());
             e.printStackTrace();
             return;
         }
-        new Thread(new Greeter()).start();
-        new Thread(new Distributor()).start();
-    }
-
-    /**
-     * Thread task to infinitely await for {@link Client}'s connection.
-     * Received connection is accepted, collected and held opened (until the {@link Client} disconnects itself).
-     * Each connected {@link Client} gets its own {@link Receiver} to receive and collect incoming {@link Message}-s.
-     * Each connected {@link Client} becomes a target for full distribution of incoming {@link Message}-s.
-     */
-    private class Greeter extends Worker {
-        private ServerSocket serverSocket;
-
-        @Override
-        protected void init() {
-            InetSocketAddress endpoint = new InetSocketAddress("localhost",
-                    Integer.parseInt(properties.getProperty("port")));
+        workers = new WorkerPool("server", WorkerPool.Mode.PLATFORM, 0);
+        try {
+            configure();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid server settings. Check the settings in " +
+                               SETTINGS.toAbsolutePath());
+            e.printStackTrace();
+            return;
+        }
+        String directory = properties.getProperty("log.dir", "log").trim();
+        if (!directory.isEmpty()) {
             try {
-                serverSocket = new ServerSocket(endpoint.getPort());
-                System.out.println("server started");
-            } catch (IOException e) {
-                System.out.println("Failed to open a server socket at " + endpoint);
+                log = new MessageLog(Paths.get(directory),
+                        Long.parseLong(properties.getProperty("log.segmentSize", "67108864")),
+                        Integer.parseInt(properties.getProperty("log.retention", "16")),
+                        MessageLog.Sync.of(properties.getProperty("log.fsync", "interval")),
+                        Long.parseLong(properties.getProperty("log.fsyncMillis", "1000")),
+                        Integer.parseInt(properties.getProperty("log.capacity", "65536")));
+                long last = log.open(message -> {
+                    if (message.getKind() == Message.Kind.TEXT) remember(new MessageEntity(null, message));
+                });
+                messageIds.set(cluster == null ? last : cluster.sequence(last));
+                if (index != null) rebuild();
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Failed to open the message log. Check the settings in " +
+                                   SETTINGS.toAbsolutePath());
                 e.printStackTrace();
-                Thread.currentThread().interrupt();
+                return;
             }
+            workers.start(log.new Appender());
+            workers.start(new Historian());
         }
-
-        @Override
-        protected void loop() {
+        if (index != null) workers.start(new Indexer());
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            Log.error("failed to expose metrics via JMX", e);
+        }
+        workers.start(metrics.new Sampler());
+        int metricsPort = Integer.parseInt(properties.getProperty("metrics.port", "0"));
+        if (metricsPort > 0) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                byte[] uuid = new byte[36];
-                int read = clientSocket.getInputStream().read(uuid);
-                if (read != 36) {
-                    System.out.println("invalid uuid provided: " + new String(uuid));
-                    return;
-                }
-                ClientEntity client = new ClientEntity(UUID.nameUUIDFromBytes(uuid),
-                        clientSocket,
-                        new ObjectOutputStream(clientSocket.getOutputStream()));
-                clients.put(client.uuid, client);
-                new Thread(new Receiver(client)).start();
-                System.out.println("connection set: " + clientSocket.getInetAddress());
+                metrics.serve(metricsPort);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("failed to serve metrics at port " + metricsPort, e);
             }
         }
-
-        @Override
-        protected void stop() {
-
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "shutdown"));
+        workers.start(timers);
+        if (cluster != null) cluster.start(workers);
+        String engine = properties.getProperty("engine", "blocking");
+        switch (engine) {
+            case "blocking":
+                greeter = new Greeter();
+                workers.start(greeter);
+                break;
+            case "nio":
+                int threads = Integer.parseInt(properties.getProperty("engine.threads", "0"));
+                try {
+                    nio = new NioEngine(this, Integer.parseInt(properties.getProperty("port")),
+                            threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), outboundBatch);
+                    nio.start(workers);
+                } catch (IOException e) {
+                    System.out.println("Failed to start the nio engine");
+                    e.printStackTrace();
+                    return;
+                }
+                break;
+            default:
+                System.out.println("Unknown engine '" + engine + "'. Check the settings in " +
+                                   SETTINGS.toAbsolutePath());
+                return;
+        }
+        for (int shard = 0; shard < messageQueue.shards(); shard++) {
+            workers.start(new Distributor(shard));
         }
     }
 
     /**
-     * Thread task corresponding to a single {@link Client} currently connected to this {@link Server}.
-     * Infinitely awaits for incoming {@link Message}-s from the connected {@link Client}.
-     * Receives {@link Message}-s and stores them into {@link Server#messageQueue} wrapped in
-     * {@link Server.MessageEntity}.
+     * Rebuilds the {@link Server#index} from the texts of all the segments of the {@link Server#log}.
      */
-    private class Receiver extends Worker {
-        private final ClientEntity client;
-        private ObjectInputStream in;
-        private UUID uuid;
+    private void rebuild() throws IOException {
+        long started = System.nanoTime();
+        log.replay(message -> {
+            if (message.getKind() == Message.Kind.TEXT) index.add(message);
+        });
+        Log.info("search index rebuilt: " + index.size() + " texts in "
+                 + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+    }
 
-        public Receiver(ClientEntity client) {
-            this.client = Objects.requireNonNull(client);
+    /**
+     * Drains the {@link Server}, then terminates all {@link Worker}-s of this {@link Server}, which flushes the
+     * {@link Server#log}, and closes connections of all {@link Client}-s.
+     * Each {@link WorkerPool} is given the "shutdown.timeout" setting (in seconds) to terminate its {@link Worker}-s.
+     */
+    private void shutdown() {
+        long timeout = Long.parseLong(properties.getProperty("shutdown.timeout", "5"));
+        drain();
+        try {
+            if (!workers.shutdown(timeout, TimeUnit.SECONDS) | !clientWorkers.shutdown(timeout, TimeUnit.SECONDS)
+                | !writerWorkers.shutdown(timeout, TimeUnit.SECONDS)) {
+                Log.warn("some workers did not terminate in " + timeout + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error(e);
         }
-
-        @Override
-        protected void init() throws IOException {
-            uuid = client.uuid;
-            if (!clients.containsKey(uuid)) throw new IllegalStateException("unknown UUID");
-            in = new ObjectInputStream(client.socket.getInputStream());
-            System.out.println("receiver initialized");
+        clients.values().forEach(this::disconnect);
+        metrics.close();
+        Log.info("server stopped");
+        try {
+            Log.flush(TimeUnit.SECONDS.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        @Override
-        protected void loop() throws IOException {
-            Message received;
+    /**
+     * Lets the {@link Client}-s get whatever is on its way to them before the {@link Server} goes away, within the
+     * {@link Server#drainTimeout}. Stops accepting connections and admitting {@link Message}-s, then passes a marker
+     * through every shard of the {@link Server#messageQueue} to see the {@link Message}-s admitted so far distributed.
+     * Then sends the {@link Message.Kind#RESUME} notice to the {@link Client}-s having
+     * {@link Protocol.Capability#RESUME}, and waits for the outbound queues of all {@link Client}-s and the links of
+     * the {@link Server#cluster} to be written out, and for the {@link Client}-s having
+     * {@link Protocol.Capability#ACKS} to acknowledge the texts sent to them. {@link Message}-s still received are
+     * read and dropped, so the connections are not reset on closing with unread bytes.
+     */
+    private void drain() {
+        long started = System.nanoTime();
+        long deadline = started + drainTimeout;
+        draining = true;
+        if (greeter != null) greeter.shutdown();
+        if (nio != null) nio.stopAccepting();
+        try {
+            flushed = new CountDownLatch(messageQueue.shards());
+            if (!messageQueue.offerAll(new MessageEntity(null, Message.resume(0)), deadline)
+                || !flushed.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                Log.warn("drain timed out: the message queue is not distributed");
+                return;
+            }
+            long last = lastId();
+            MessageEntity notice = new MessageEntity(null, Message.resume(last));
             try {
-                received = (Message) in.readObject();
-                System.out.println("message received: " + received);
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-                received = null;
+                for (ClientEntity client : clients.values()) {
+                    if (client.capabilities.contains(Protocol.Capability.RESUME)) {
+                        client.tryOffer(notice.frame(client.connection.codec()));
+                    }
+                }
+            } finally {
+                notice.release();
             }
-            if (received != null) {
-                try {
-                    messageQueue.put(new MessageEntity(uuid, received));
-                    System.out.println("message put in queue: " + received);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    e.printStackTrace();
+            long lagging;
+            while ((lagging = lagging()) > 0) {
+                if (System.nanoTime() - deadline >= 0) {
+                    Log.warn("drain timed out: " + lagging + " clients and links are not written out");
+                    return;
                 }
+                TimeUnit.MILLISECONDS.sleep(DRAIN_POLL_MILLIS);
             }
+            Log.info("drained in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms, resume after "
+                     + last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error(e);
+        } catch (IOException e) {
+            Log.error(e);
         }
+    }
 
-        @Override
-        protected void stop() throws IOException {
-            in.close();
-            client.socket.close();
-            clients.remove(uuid);
-        }
+    /**
+     * Makes up the identifier of the most recent text from the sequence of identifiers.
+     */
+    private long lastId() {
+        return cluster == null ? messageIds.get() : cluster.id(messageIds.get());
     }
 
     /**
-     * Thread task to send out each {@link Message} stored in the {@link Server#messageQueue} to all currently
-     * connected participants of the Chat except for original {@link Message}'s author.
-     * Supposed to be in one instance per {@link Server}.
+     * Counts the {@link Client}-s and the links of the {@link Server#cluster} having frames not written out, or texts
+     * not acknowledged, yet.
      */
-    private class Distributor extends Worker {
-        @Override
-        protected void init() {
-            System.out.println("distributor initialized");
-        }
+    private long lagging() {
+        long lagging = clients.values().stream().filter(ClientEntity::lagging).count();
+        return cluster == null ? lagging : lagging + cluster.lagging();
+    }
 
-        @Override
-        protected void loop() {
-            try {
-                MessageEntity message = messageQueue.take();
-                System.out.println("message taken from queue: " + message.message);
-                clients.keySet().forEach(uuid -> {
-                    if (uuid.equals(message.author)) return;
-                    try {
-                        clients.get(uuid).out.writeObject(message.message);
-                        System.out.println("message sent " + message.message + " to " + uuid);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        try {
-                            clients.get(uuid).socket.close();
-                        } catch (IOException e1) {
-                            e1.printStackTrace();
-                        }
-                        clients.remove(uuid);
-                    }
-                });
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                e.printStackTrace();
-            }
+    /**
+     * Picks the version of the {@link Protocol} for a connection with a {@link Client} knowing versions up to the
+     * given one.
+     */
+    int negotiate(int version) {
+        return Protocol.negotiate(version, compression);
+    }
+
+    /**
+     * Agrees on the {@link Protocol.Capability}-s with a {@link Client} introduced by the hello: those both the
+     * {@link Client} and the {@link Server} have. The answer to the hello is made up of the agreed ones.
+     *
+     * @throws StreamCorruptedException in case the {@link Message} is not a hello.
+     */
+    Set<Protocol.Capability> agree(Message hello) throws StreamCorruptedException {
+        if (hello.getKind() != Message.Kind.HELLO) {
+            throw new StreamCorruptedException("expected hello, got " + hello.getKind());
         }
+        Set<Protocol.Capability> agreed = Protocol.Capability.parse(hello.getMessage());
+        if (!compression) agreed.remove(Protocol.Capability.COMPRESSION);
+        return agreed;
+    }
 
-        @Override
-        protected void stop() {
+    /**
+     * Schedules the task to be run once the connection has been given the {@link Server#handshakeTimeout} to
+     * complete the handshake. The task is supposed to close the connection unless the handshake is complete.
+     */
+    void handshakeDeadline(Runnable task) {
+        if (handshakeTimeout > 0) timers.schedule(task, handshakeTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Collects a newly connected {@link Client} having the {@link Protocol.Capability}-s implied by the version of its
+     * {@link Codec}, see {@link Server#register(UUID, String, Set, long, Connection)}.
+     */
+    ClientEntity register(UUID uuid, Connection connection) {
+        return register(uuid, "", Protocol.implied(connection.codec().version()), 0, connection);
+    }
 
+    /**
+     * Collects a newly connected {@link Client} into {@link Server#clients} making it a target for distribution of
+     * incoming {@link Message}-s. A named {@link Client} having the {@link Protocol.Capability#DIRECT} is also indexed
+     * by its name. A connection the {@link Client} has left behind with the same {@link UUID}, e.g. before
+     * reconnecting, is disconnected. Heartbeats of the {@link Client} are started, if it has the
+     * {@link Protocol.Capability#HEARTBEATS}. The engine is then to pass the {@link Server#entrance(ClientEntity)} of
+     * the {@link Client} on like any {@link Message} received from it.
+     *
+     * @param uuid         {@link UUID} the {@link Client} introduced itself with.
+     * @param name         name the {@link Client} introduced itself with, empty if none.
+     * @param capabilities {@link Protocol.Capability}-s agreed with the {@link Client}.
+     * @param resumeAfter  identifier of the most recent text of the {@link Message#DEFAULT_ROOM} the reconnecting
+     *                     {@link Client} has got, or 0. Ignored if ahead of this {@link Server}, e.g. one started
+     *                     without its message log.
+     * @param connection   transport to the {@link Client}.
+     * @return collected {@link Server.ClientEntity}.
+     */
+    ClientEntity register(UUID uuid, String name, Set<Protocol.Capability> capabilities, long resumeAfter,
+                          Connection connection) {
+        if (resumeAfter > lastId()) resumeAfter = 0;
+        ClientEntity client = new ClientEntity(uuid, name, capabilities, resumeAfter, connection);
+        ClientEntity replaced = clients.put(uuid, client);
+        if (replaced != null) {
+            Log.info("connection replaced: " + replaced.connection.address() + ", " + replaced.lagReport());
+            disconnect(replaced);
         }
+        if (!name.isEmpty() && capabilities.contains(Protocol.Capability.DIRECT)) {
+            names.compute(name, (key, connections) -> {
+                if (connections == null) connections = ConcurrentHashMap.newKeySet();
+                connections.add(client);
+                return connections;
+            });
+        }
+        if (heartbeatInterval > 0 && capabilities.contains(Protocol.Capability.HEARTBEATS)) {
+            timers.schedule(() -> heartbeat(client), heartbeatInterval, TimeUnit.NANOSECONDS);
+        }
+        Log.info("connection set: " + connection.address() + (name.isEmpty() ? "" : ", " + name)
+                 + (resumeAfter > 0 ? ", resuming after " + resumeAfter : ""));
+        return client;
     }
 
     /**
-     * Wrapper class to hold together the {@link Client}'s UUID, Socket and ObjectOutputStream.
-     * Is collected in {@link Server#clients} by {@link Server.Greeter}.
-     * Used to identify {@link Client}-s and to send out {@link Message}s.
+     * Request of the newly registered {@link Client} to join the {@link Message#DEFAULT_ROOM}. The recent history of
+     * the room is replayed to the {@link Client} before any new {@link Message}, or only the part of it following the
+     * identifier to resume after. It is queued by the engine in order with whatever the {@link Client} sends next,
+     * and the same way, so an event loop of the engine never waits for room in a full shard.
      */
-    @SuppressWarnings("InnerClassMayBeStatic")
-    private class ClientEntity {
-        private final UUID uuid;
-        private final Socket socket;
-        private final ObjectOutputStream out;
+    Message entrance(ClientEntity client) {
+        Message join = Message.join(client.uuid.toString(), Message.DEFAULT_ROOM);
+        join.setId(client.resumeAfter);
+        return join;
+    }
 
-        public ClientEntity(UUID uuid, Socket socket, ObjectOutputStream out) {
-            this.uuid = Objects.requireNonNull(uuid);
-            this.socket = Objects.requireNonNull(socket);
-            this.out = Objects.requireNonNull(out);
+    /**
+     * Handles a {@link Message} received from the {@link Client}, see {@link Server#admit(ClientEntity, Message)}.
+     * Waits for room in the {@link Server#messageQueue} if the shard is full, which holds up reading from the
+     * {@link Client} and so pushes back on it.
+     */
+    void receive(ClientEntity client, Message message) {
+        MessageEntity admitted = admit(client, message);
+        if (admitted == null || offer(admitted)) return;
+        metrics.ingestStalls.increment();
+        try {
+            messageQueue.put(message.getRoom().hashCode(), admitted);
+            taken(admitted);
+            if (Log.enabled(Log.Level.DEBUG)) Log.debug("message put in queue: " + message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error(e);
         }
     }
 
     /**
-     * Wrapper class to hold together a {@link Message} with its author (identified by the UUID of the {@link Client}
-     * connection).
+     * Handles a {@link Message} received from the {@link Client} up to storing it into the
+     * {@link Server#messageQueue}.
+     * Requests to join or to leave a room are to be served in order with the texts of the room, while the set of
+     * rooms of the {@link Client} is updated at once. Requests for older history are handed over to the
+     * {@link Server.Historian}, search requests to the {@link Server.Indexer}. A heartbeat is answered at once. A text
+     * is dropped if the {@link Client} is not a member of the room it is posted to; a {@link Message.Kind#DIRECT} text
+     * is queued to the shard of its recipient, so the texts sent to a user keep their order. Texts and requests for
+     * older history over the rate limit of the {@link Client} are dropped, as well as anything received once the
+     * {@link Server} is draining. A text the {@link Client} having {@link Protocol.Capability#ACKS} has already sent
+     * within the {@link Server#dedup} window is dropped; an acknowledgement of the {@link Client} moves its delivery
+     * cursor.
+     *
+     * @return the {@link Server.MessageEntity} to store into the {@link Server#messageQueue} or null if the
+     * {@link Message} is already handled.
      */
-    @SuppressWarnings("InnerClassMayBeStatic")
-    private class MessageEntity {
-        private final UUID author;
-        private final Message message;
-
-        public MessageEntity(UUID author, Message message) {
-            this.author = Objects.requireNonNull(author);
-            this.message = Objects.requireNonNull(message);
+    MessageEntity admit(ClientEntity client, Message message) {
+        client.lastSeen = System.nanoTime();
+        if (message.getKind() == Message.Kind.ACK) {
+            // the delivery cursor is kept while draining, as the drain waits for it
+            if (message.getId() > client.cursor) client.cursor = message.getId();
+            return null;
+        }
+        if (draining) return null;
+        long sequence = client.capabilities.contains(Protocol.Capability.ACKS) ? message.getId() : 0;
+        switch (message.getKind()) {
+            case JOIN:
+                client.rooms.add(message.getRoom());
+                return new MessageEntity(client, message);
+            case LEAVE:
+                client.rooms.remove(message.getRoom());
+                return new MessageEntity(client, message);
+            case HISTORY:
+                if (log == null || !client.rooms.contains(message.getRoom()) || overLimit(client)) return null;
+                if (!historyRequests.offer(new MessageEntity(client, message))) {
+                    Log.warn("history request rejected: " + client.connection.address());
+                }
+                return null;
+            case SEARCH:
+                if (index == null || overLimit(client)) return null;
+                if (!indexQueue.offer(new MessageEntity(client, message))) {
+                    Log.warn("search request rejected: " + client.connection.address());
+                }
+                return null;
+            case PING:
+                try {
+                    client.tryOffer(Message.pong());
+                } catch (IOException e) {
+                    Log.error(e);
+                }
+                return null;
+            case PONG:
+                return null;
+            case DIRECT:
+                if (duplicate(client, sequence)) return null;
+                if (message.getRoom().isEmpty() || overLimit(client)) return refuse(client, sequence);
+                stamp(message);
+                break;
+            default:
+                if (duplicate(client, sequence)) return null;
+                if (!client.rooms.contains(message.getRoom())) {
+                    Log.warn("message to a room not joined: " + message);
+                    return refuse(client, sequence);
+                }
+                if (overLimit(client)) return refuse(client, sequence);
+                stamp(message);
+        }
+        return new MessageEntity(client, message, sequence);
+    }
+
+    /**
+     * Checks whether the text is sent again by the {@link Client} having missed the acknowledgement. A text already
+     * taken is acknowledged again and dropped.
+     *
+     * @param sequence identifier the {@link Client} gave to the text, or 0 if none.
+     */
+    private boolean duplicate(ClientEntity client, long sequence) {
+        if (sequence <= 0 || dedup == null || !dedup.contains(DedupWindow.fingerprint(client.uuid, sequence))) {
+            return false;
+        }
+        metrics.duplicates.increment();
+        client.take(sequence);
+        return true;
+    }
+
+    /**
+     * Drops the text refused for good, e.g. over the rate limit. It is acknowledged all the same, as sending it again
+     * would not help.
+     *
+     * @param sequence identifier the {@link Client} gave to the text, or 0 if none.
+     * @return null, as the text is handled.
+     */
+    private MessageEntity refuse(ClientEntity client, long sequence) {
+        client.take(sequence);
+        return null;
+    }
+
+    /**
+     * Remembers the text stored into the {@link Server#messageQueue} as taken from its author, to be acknowledged
+     * and to drop it if sent again.
+     */
+    private void taken(MessageEntity message) {
+        if (message.sequence <= 0) return;
+        if (dedup != null) dedup.add(DedupWindow.fingerprint(message.author.uuid, message.sequence));
+        message.author.take(message.sequence);
+    }
+
+    /**
+     * Acknowledges the texts taken from the {@link Client} having {@link Protocol.Capability#ACKS} since the last
+     * acknowledgement, if any. Called by the Thread reading the {@link Client}'s connection once it has read all the
+     * bytes received so far, so a burst of texts is acknowledged at once. An acknowledgement not fitting into the
+     * outbound queue is left for the next burst, as it covers all the texts up to its identifier.
+     */
+    void acknowledge(ClientEntity client) {
+        if (client.taken <= client.acknowledged) return;
+        try {
+            if (client.tryOffer(Message.ack(client.taken))) {
+                client.acknowledged = client.taken;
+            }
+        } catch (IOException e) {
+            Log.error(e);
+        }
+    }
+
+    /**
+     * Assigns the moment of receiving to the text. Its identifier is left to the {@link Server.Distributor}, see
+     * {@link Server#number(MessageEntity)}.
+     */
+    private void stamp(Message message) {
+        message.setReceived(System.currentTimeMillis());
+        metrics.messagesIn.increment();
+    }
+
+    /**
+     * Assigns the next identifier to the text posted here, unless relayed with the identifier given by another node.
+     * Called by the {@link Server.Distributor} of the text's shard right before handing the text over, so the
+     * identifiers of the texts of a room, and of those sent to a user, follow the order they are delivered in. Texts
+     * read by different Threads may be queued in any order, so the identifiers are not assigned on reading.
+     */
+    private void number(MessageEntity message) {
+        if (message.author == null) return;
+        long sequence = messageIds.incrementAndGet();
+        message.message.setId(cluster == null ? sequence : cluster.id(sequence));
+    }
+
+    /**
+     * Stores the admitted {@link Message} into the {@link Server#messageQueue} unless the shard is full.
+     *
+     * @return true if stored. Otherwise returns false: the caller is supposed to stop reading from the
+     * {@link Client} and to retry later.
+     */
+    boolean offer(MessageEntity message) {
+        if (!messageQueue.offer(message.message.getRoom().hashCode(), message)) return false;
+        taken(message);
+        if (Log.enabled(Log.Level.DEBUG)) Log.debug("message put in queue: " + message.message);
+        return true;
+    }
+
+    /**
+     * Takes a token from the rate limit of the {@link Client}. Warns of the {@link Message}-s dropped at most once per
+     * {@link Server#RATE_WARNING_INTERVAL} for each {@link Client}.
+     *
+     * @return true if the {@link Client} is over the limit, so its {@link Message} is to be dropped.
+     */
+    private boolean overLimit(ClientEntity client) {
+        if (client.limit == null || client.limit.tryAcquire()) return false;
+        metrics.rateLimited.increment();
+        client.rejected++;
+        long now = System.nanoTime();
+        if (now - client.warned >= RATE_WARNING_INTERVAL) {
+            Log.warn("rate limit exceeded, " + client.rejected + " messages dropped: " + client.connection.address());
+            client.rejected = 0;
+            client.warned = now;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the {@link Client} is alive. Pings it once nothing has been received from it for the
+     * {@link Server#heartbeatInterval}, and disconnects it once nothing has been received for the
+     * {@link Server#heartbeatTimeout}, which closes its connection and terminates its {@link Worker}-s, if any.
+     * Run by the {@link Server#timers}; reschedules itself while the {@link Client} is connected.
+     */
+    private void heartbeat(ClientEntity client) {
+        if (client.closed.get()) return;
+        long idle = System.nanoTime() - client.lastSeen;
+        if (idle >= heartbeatTimeout) {
+            Log.info("connection timed out: " + client.connection.address() + ", silent for "
+                     + TimeUnit.NANOSECONDS.toMillis(idle) + " ms");
+            metrics.idleEvictions.increment();
+            disconnect(client);
+            return;
+        }
+        if (idle >= heartbeatInterval) {
+            try {
+                client.tryOffer(ping.frame(client.connection.codec()));
+            } catch (IOException e) {
+                Log.error(e);
+            }
+        }
+        timers.schedule(() -> heartbeat(client), Math.min(heartbeatInterval, heartbeatTimeout - idle),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Handles a text relayed by another node of the {@link Server#cluster}: stores it into {@link Server#messageQueue}
+     * to be distributed to the members of its room here, or to the recipient if connected here, with no author to
+     * skip. Moves the sequence of identifiers past the one of the text, so the texts posted here afterwards get
+     * greater identifiers.
+     *
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting for room in the queue.
+     */
+    void relayed(Message message) throws InterruptedException {
+        if (message.getKind() != Message.Kind.TEXT && message.getKind() != Message.Kind.DIRECT) return;
+        messageIds.accumulateAndGet(cluster.sequence(message.getId()), Math::max);
+        metrics.relayedIn.increment();
+        messageQueue.put(message.getRoom().hashCode(), new MessageEntity(null, message));
+        if (Log.enabled(Log.Level.DEBUG)) Log.debug("relayed message put in queue: " + message);
+    }
+
+    /**
+     * Subscribes the {@link Client} to the room, creating the room if needed, and replays the recent history of the
+     * room to the {@link Client}, skipping the texts it has got before reconnecting. Called by the
+     * {@link Server.Distributor} of the room's shard, so no {@link Message} of the room is either missed or repeated.
+     * The set of rooms of the {@link Client} is left to {@link Server#receive(ClientEntity, Message)}, as it may be
+     * ahead of the requests still queued.
+     */
+    private void join(ClientEntity client, String room, long after) throws IOException, InterruptedException {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(client);
+            return members;
+        });
+        // the client may have been disconnected meanwhile, having left all the rooms known at that moment
+        if (client.closed.get()) {
+            leave(client, room);
+            return;
+        }
+        RingBuffer<MessageEntity> recent = history.get(room);
+        if (recent == null) return;
+        // a cursor ahead of this server, e.g. one started without its message log, is ignored
+        if (after > lastId()) after = 0;
+        for (MessageEntity message : recent.snapshot()) {
+            if (message.message.getId() <= after) continue;
+            if (!client.offer(message.frame(client.connection.codec()))) return;
+            client.sent();
+        }
+    }
+
+    /**
+     * Puts the text into the cache of the recent history of its room, releasing the frames of the text it replaces.
+     */
+    private void remember(MessageEntity message) {
+        if (historySize <= 0) return;
+        MessageEntity replaced = history.computeIfAbsent(message.message.getRoom(),
+                room -> new RingBuffer<>(historySize)).add(message);
+        if (replaced != null) replaced.release();
+    }
+
+    /**
+     * Unsubscribes the {@link Client} from the room, removing the room if nobody is left in it.
+     */
+    private void leave(ClientEntity client, String room) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Removes the {@link Client} from {@link Server#clients}, from {@link Server#names} and from all its rooms and
+     * closes its connection. Done once per {@link Server.ClientEntity}, whichever of its Threads calls it first.
+     */
+    void disconnect(ClientEntity client) {
+        if (!client.closed.compareAndSet(false, true)) return;
+        if (clients.remove(client.uuid, client)) {
+            Log.info("connection closed: " + client.connection.address() + ", " + client.lagReport());
+        }
+        names.computeIfPresent(client.name, (name, connections) -> {
+            connections.remove(client);
+            return connections.isEmpty() ? null : connections;
+        });
+        client.rooms.forEach(room -> leave(client, room));
+        // releases a Distributor waiting for room in the queue by the BLOCK policy
+        client.drain();
+        try {
+            client.connection.close();
+        } catch (IOException e) {
+            Log.error(e);
+        }
+    }
+
+    /**
+     * Thread task to infinitely await for {@link Client}'s connection.
+     * Received connection is accepted and held opened (until the {@link Client} disconnects itself).
+     * Each accepted connection gets its own {@link Receiver} to complete the handshake, then to receive and collect
+     * incoming {@link Message}-s, so a slow handshake never holds up accepting other connections.
+     * Each connected {@link Client} becomes a target for full distribution of incoming {@link Message}-s.
+     */
+    private class Greeter extends Worker {
+        private ServerSocket serverSocket;
+
+        @Override
+        protected void init() {
+            InetSocketAddress endpoint = new InetSocketAddress("localhost",
+                    Integer.parseInt(properties.getProperty("port")));
+            try {
+                serverSocket = new ServerSocket(endpoint.getPort(), BACKLOG);
+                Log.info("server started");
+            } catch (IOException e) {
+                Log.error("Failed to open a server socket at " + endpoint, e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void loop() {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                metrics.accepted.increment();
+                Receiver receiver = new Receiver(clientSocket, System.nanoTime());
+                handshakeDeadline(receiver::expire);
+                clientWorkers.start(receiver);
+            } catch (IOException e) {
+                if (!isInterrupted()) Log.error(e);
+            }
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            unblock();
+        }
+
+        @Override
+        protected void unblock() throws IOException {
+            if (serverSocket != null) serverSocket.close();
+        }
+    }
+
+    /**
+     * Thread task corresponding to a single {@link Client} currently connected to this {@link Server}.
+     * Completes the handshake, registering the {@link Client} and starting its {@link Writer}, unless the
+     * {@link Server#handshakeTimeout} passes first. Then infinitely awaits for incoming {@link Message}-s from the
+     * connected {@link Client}. Receives {@link Message}-s and stores them into {@link Server#messageQueue} wrapped in
+     * {@link Server.MessageEntity}.
+     */
+    private class Receiver extends Worker {
+        private final Socket socket;
+        /**
+         * Moment the connection was accepted, by {@link System#nanoTime()}.
+         */
+        private final long accepted;
+        private DataInputStream in;
+        /**
+         * Array the frames are read into, grown to fit the largest frame read so far.
+         */
+        private byte[] payload = new byte[256];
+        /**
+         * Object stream of a version 1 {@link Client}, read instead of frames. Null for the framed versions.
+         */
+        private ObjectInputStream objects;
+        private Codec codec;
+        private volatile ClientEntity client;
+
+        public Receiver(Socket socket, long accepted) {
+            this.socket = Objects.requireNonNull(socket);
+            this.accepted = accepted;
+        }
+
+        @Override
+        protected void init() {
+            if (socket.isClosed()) return; // timed out while waiting for a Thread
+            try {
+                in = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream())));
+                handshake();
+            } catch (IOException e) {
+                if (!isInterrupted()) {
+                    metrics.handshakeFailures.increment();
+                    Log.warn("handshake failed: " + socket.getRemoteSocketAddress() + ": " + e);
+                }
+                shutdown();
+                return;
+            }
+            Log.debug("receiver initialized");
+        }
+
+        @Override
+        protected void loop() throws IOException {
+            Message received = objects != null ? readObject() : readFrame();
+            if (Log.enabled(Log.Level.DEBUG)) Log.debug("message received: " + received);
+            receive(client, received);
+            if (in.available() == 0) acknowledge(client);
+        }
+
+        @Override
+        protected void stop() throws IOException {
+            if (client != null) {
+                disconnect(client);
+            } else {
+                socket.close();
+            }
+        }
+
+        @Override
+        protected void unblock() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Closes the connection unless the handshake is complete. Run by the {@link Server#timers} once the
+         * {@link Server#handshakeTimeout} since the connection was accepted passes, whether this Receiver has been
+         * given a Thread by then or not.
+         */
+        private void expire() {
+            if (client != null) return;
+            metrics.handshakeTimeouts.increment();
+            Log.warn("handshake timed out: " + socket.getRemoteSocketAddress());
+            shutdown();
+        }
+
+        private Message readFrame() throws IOException {
+            int length = in.readInt();
+            Protocol.checkLength(length);
+            if (payload.length < length) payload = new byte[Math.max(length, 2 * payload.length)];
+            in.readFully(payload, 0, length);
+            return codec.decode(payload, 0, length);
+        }
+
+        private Message readObject() throws IOException {
+            try {
+                return (Message) objects.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new StreamCorruptedException("object stream does not hold a message: " + e);
+            }
+        }
+
+        /**
+         * Reads the {@link Client}'s introduction, answers it and registers the {@link Client}. Blocks until every
+         * part of the introduction fully arrives. See {@link Protocol} for the handshake details.
+         */
+        private void handshake() throws IOException {
+            byte[] uuid = new byte[Protocol.UUID_LENGTH];
+            int first = in.read();
+            if (first < 0) throw new EOFException("closed before the handshake");
+            int version = Codec.SERIALIZED.version();
+            String name = "";
+            long resumeAfter = 0;
+            Set<Protocol.Capability> agreed;
+            if (Protocol.isVersion(first)) {
+                version = negotiate(first);
+                in.readFully(uuid);
+                OutputStream out = socket.getOutputStream();
+                out.write(version);
+                if (version >= Protocol.HELLO_VERSION) {
+                    Message hello = Protocol.read(in, Codec.BINARY);
+                    agreed = agree(hello);
+                    name = hello.getSender();
+                    resumeAfter = hello.getId();
+                    out.write(Codec.BINARY.encode(Message.hello("", Protocol.Capability.format(agreed))));
+                } else {
+                    agreed = Protocol.implied(version);
+                }
+            } else {
+                uuid[0] = (byte) first;
+                in.readFully(uuid, 1, uuid.length - 1);
+                agreed = Protocol.implied(version);
+                socket.getOutputStream().write(Protocol.STREAM_HEADER);
+                objects = Protocol.objectStream(in);
+            }
+            codec = Protocol.codec(version, agreed);
+            SocketConnection connection = new SocketConnection(socket, codec);
+            connection.receiver = this;
+            client = register(Protocol.uuid(uuid), name, agreed, resumeAfter, connection);
+            receive(client, entrance(client));
+            connection.writer = new Writer(client, connection);
+            writerWorkers.start(connection.writer);
+            metrics.handshakeLatency.record(System.nanoTime() - accepted);
+        }
+    }
+
+    /**
+     * Thread task corresponding to a single {@link Client} connected to this {@link Server} by the "blocking" engine.
+     * Infinitely takes frames from the outbound queue of the {@link Server.ClientEntity} and writes them to the
+     * {@link Socket}, so a slow {@link Client} holds up nobody but itself.
+     * Frames are written in batches of up to {@link Server#outboundBatch} frames with a single flush per batch. A batch
+     * is flushed once it is full, or once the queue stays empty for {@link Server#outboundLinger} since the batch was
+     * started.
+     */
+    private class Writer extends Worker {
+        private final ClientEntity client;
+        private final SocketConnection connection;
+
+        public Writer(ClientEntity client, SocketConnection connection) {
+            this.client = Objects.requireNonNull(client);
+            this.connection = Objects.requireNonNull(connection);
+        }
+
+        @Override
+        protected void init() {
+        }
+
+        @Override
+        protected void loop() throws IOException {
+            int count = 0;
+            long bytes = 0;
+            try {
+                BufferPool.Chunk frame = client.outbound.take();
+                long deadline = System.nanoTime() + outboundLinger;
+                while (frame != null) {
+                    bytes += frame.length();
+                    try {
+                        connection.write(frame);
+                    } finally {
+                        frame.release();
+                    }
+                    if (++count == outboundBatch) break;
+                    frame = client.outbound.poll();
+                    if (frame == null && outboundLinger > 0) {
+                        long left = deadline - System.nanoTime();
+                        if (left > 0) frame = client.outbound.poll(left, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (count > 0) {
+                connection.push();
+                client.written.addAndGet(count);
+                metrics.messagesOut.add(count);
+                metrics.bytesOut.add(bytes);
+            }
+        }
+
+        @Override
+        protected void stop() {
+            disconnect(client);
+        }
+    }
+
+    /**
+     * Thread task to hand each {@link Message} stored in a shard of the {@link Server#messageQueue} over to all
+     * currently connected members of the {@link Message}'s room except for original {@link Message}'s author.
+     * Only puts the {@link Message} into the outbound queue of every recipient, so it is never blocked by writing to a
+     * slow {@link Client} (unless the {@link Overflow#BLOCK} policy is chosen). Then hands the {@link Message} over to
+     * the {@link Server#log}.
+     * Supposed to be in one instance per shard of the {@link Server#messageQueue}.
+     */
+    private class Distributor extends Worker {
+        private final int shard;
+
+        public Distributor(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        protected void init() {
+            Log.info("distributor initialized: shard " + shard);
+        }
+
+        @Override
+        protected void loop() {
+            try {
+                MessageEntity message = messageQueue.take(shard);
+                if (Log.enabled(Log.Level.DEBUG)) Log.debug("message taken from queue: " + message.message);
+                distribute(message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.error(e);
+            } catch (IOException e) {
+                Log.error(e);
+            }
+        }
+
+        @Override
+        protected void stop() {
+
+        }
+    }
+
+    /**
+     * Serves a {@link Message} taken from a shard of the {@link Server#messageQueue}: a request to join or to leave
+     * the room, the marker passed through the shards while draining, a {@link Message.Kind#DIRECT} text, or a text to
+     * remember in the room's history, to hand over to the members of the room, to the other nodes of the
+     * {@link Server#cluster} unless it was relayed from one of them, to the {@link Server#log} and to the
+     * {@link Server.Indexer}.
+     * Called by the {@link Server.Distributor} of the room's shard only.
+     *
+     * @throws IOException          in case the {@link Message} could not be encoded.
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting for room in a queue.
+     */
+    void distribute(MessageEntity message) throws IOException, InterruptedException {
+        switch (message.message.getKind()) {
+            case JOIN:
+                join(message.author, message.message.getRoom(), message.message.getId());
+                return;
+            case LEAVE:
+                leave(message.author, message.message.getRoom());
+                return;
+            case RESUME:
+                flushed.countDown();
+                return;
+            case DIRECT:
+                number(message);
+                direct(message);
+                return;
+            default:
+                break;
+        }
+        number(message);
+        long taken = System.nanoTime();
+        metrics.queueLatency.record(taken - message.received);
+        remember(message);
+        Set<ClientEntity> members = rooms.get(message.message.getRoom());
+        send(members, message);
+        metrics.fanOutLatency.record(System.nanoTime() - taken);
+        if (cluster != null && message.author != null) cluster.relay(message.frame(Codec.BINARY));
+        if (log != null) log.append(message.message, message.frame(Codec.BINARY));
+        // a text remembered keeps its frames for the history replays until it is replaced
+        if (historySize <= 0) message.release();
+        // a text not fitting is left out of the search rather than holding up the room
+        if (index != null && !indexQueue.offer(message)) metrics.indexDropped.increment();
+    }
+
+    /**
+     * Hands a {@link Message.Kind#DIRECT} text over to every connection of its recipient found by a single lookup in
+     * {@link Server#names}, and to the other connections of its author, so all the devices of both users show it.
+     * The author is known by the name it has connected with, as the sender of the text is up to the {@link Client};
+     * only a text relayed by another node is taken by its sender.
+     * The text is relayed to the other nodes of the {@link Server#cluster}, as the recipient may be connected there,
+     * but is neither remembered nor logged, as the history is kept per room.
+     */
+    private void direct(MessageEntity message) throws IOException {
+        metrics.queueLatency.record(System.nanoTime() - message.received);
+        metrics.directMessages.increment();
+        Set<ClientEntity> recipients = names.get(message.message.getRoom());
+        if (recipients == null) metrics.directMisses.increment();
+        try {
+            send(recipients, message);
+            String author = message.author != null ? message.author.name : message.message.getSender();
+            if (!author.isEmpty() && !message.message.getRoom().equals(author)) send(names.get(author), message);
+            if (cluster != null && message.author != null) cluster.relay(message.frame(Codec.BINARY));
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Puts the {@link Message} into the outbound queue of each of the {@link Client}-s but its author, disconnecting
+     * those the {@link Message} could not be encoded for.
+     *
+     * @param recipients the {@link Client}-s, or null if there are none.
+     */
+    private void send(Set<ClientEntity> recipients, MessageEntity message) {
+        if (recipients != null) recipients.forEach(client -> {
+            if (client == message.author) return;
+            try {
+                if (!client.offer(message.frame(client.connection.codec()))) return;
+                client.sent();
+                if (Log.enabled(Log.Level.DEBUG)) {
+                    Log.debug("message queued " + message.message + " for " + client.uuid);
+                }
+            } catch (IOException e) {
+                Log.error(e);
+                disconnect(client);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Thread task to infinitely take requests for older history of a room and to answer each of them with a page of
+     * the room's {@link Message}-s read from the {@link Server#log}. Only the history beyond the cache is supposed to
+     * be requested, so a single {@link Server.Historian} is enough and keeps the disk from being hammered.
+     * Supposed to be in one instance per {@link Server}.
+     */
+    private class Historian extends Worker {
+        @Override
+        protected void init() {
+            Log.info("historian initialized");
+        }
+
+        @Override
+        protected void loop() {
+            MessageEntity request;
+            try {
+                request = historyRequests.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            ClientEntity client = request.author;
+            long before = request.message.getId() > 0 ? request.message.getId() : Long.MAX_VALUE;
+            try {
+                List<Message> page = log.page(request.message.getRoom(), before, historyPageSize);
+                Log.debug("history page of " + page.size() + " read for " + client.uuid);
+                for (Message message : page) {
+                    if (!client.offer(message)) return;
+                    client.sent();
+                }
+            } catch (IOException e) {
+                Log.error(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void stop() {
+
+        }
+    }
+
+    /**
+     * Thread task to infinitely take the distributed texts to add them to the {@link Server#index}, and the search
+     * requests to answer them from it. Indexing is kept off the distribution path: the {@link Server.Distributor}
+     * only offers the text to the queue. As texts and requests share the queue, a request finds the texts distributed
+     * before it was received. Only the texts of the rooms the {@link Client} is currently in are found.
+     * Supposed to be in one instance per {@link Server}.
+     */
+    private class Indexer extends Worker {
+        @Override
+        protected void init() {
+            Log.info("indexer initialized");
+        }
+
+        @Override
+        protected void loop() {
+            MessageEntity entity;
+            try {
+                entity = indexQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (entity.message.getKind() == Message.Kind.TEXT) {
+                index.add(entity.message);
+                return;
+            }
+            ClientEntity client = entity.author;
+            List<Message> found;
+            try {
+                found = index.search(SearchIndex.Query.parse(entity.message.getMessage()), client.rooms::contains,
+                        searchLimit);
+            } catch (IllegalArgumentException e) {
+                Log.debug("malformed search request: " + e);
+                found = List.of();
+            }
+            try {
+                for (Message message : found) {
+                    if (!client.offer(Message.found(message))) return;
+                }
+                client.offer(Message.search("", ""));
+            } catch (IOException e) {
+                Log.error(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            metrics.searches.increment();
+            metrics.searchLatency.record(System.nanoTime() - entity.received);
+        }
+
+        @Override
+        protected void stop() {
+
+        }
+    }
+
+    /**
+     * Policies of handling a full outbound queue of a {@link Server.ClientEntity}.
+     */
+    enum Overflow {
+        /**
+         * Drop the oldest queued frame to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Disconnect the {@link Client} as a slow consumer.
+         */
+        DISCONNECT,
+        /**
+         * Wait until there is room in the queue, holding up the {@link Server.Distributor}.
+         */
+        BLOCK
+    }
+
+    /**
+     * Wrapper class to hold together the {@link Client}'s UUID, its {@link Connection} and the bounded queue of frames
+     * waiting to be written to the {@link Connection}.
+     * Is collected in {@link Server#clients} by {@link Server#register(UUID, Connection)}.
+     * Used to identify {@link Client}-s and to send out {@link Message}s.
+     * Counts frames passing through the queue to tell how much the {@link Client} lags behind.
+     */
+    class ClientEntity {
+        private final UUID uuid;
+        /**
+         * Name the {@link Client} introduced itself with, empty if none.
+         */
+        final String name;
+        /**
+         * {@link Protocol.Capability}-s agreed with the {@link Client} on handshake.
+         */
+        final Set<Protocol.Capability> capabilities;
+        /**
+         * Identifier of the most recent text of the {@link Message#DEFAULT_ROOM} the {@link Client} has got before
+         * reconnecting, or 0. The other rooms are resumed by the requests to join them.
+         */
+        final long resumeAfter;
+        private final Connection connection;
+        final BlockingQueue<BufferPool.Chunk> outbound = new ArrayBlockingQueue<>(outboundCapacity);
+        final AtomicLong queued = new AtomicLong();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        /**
+         * Names of the rooms the {@link Client} is subscribed to.
+         */
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        /**
+         * Moment anything was last received from the {@link Client}, by {@link System#nanoTime()}.
+         */
+        volatile long lastSeen = System.nanoTime();
+        /**
+         * Rate limit of the texts and the requests for older history, taken by the Thread reading the
+         * {@link Client}'s connection. Null if disabled.
+         */
+        final TokenBucket limit = rateLimit > 0 ? new TokenBucket(rateLimit, rateBurst) : null;
+        /**
+         * Number of {@link Message}-s dropped over the rate limit since the last warning, and the moment of the
+         * warning, by {@link System#nanoTime()}.
+         */
+        private long rejected;
+        private long warned = System.nanoTime() - RATE_WARNING_INTERVAL;
+        /**
+         * Greatest identifier the {@link Client} gave to its texts such that all the texts up to it are taken, and
+         * the one last acknowledged. Touched by the Thread reading the {@link Client}'s connection only.
+         */
+        private long taken;
+        private long acknowledged;
+        /**
+         * Delivery cursor: number of the texts the {@link Client} has acknowledged receiving over the connection, and
+         * the number of those queued for it. Counted rather than taken by identifier, as the texts of different
+         * rooms are delivered in no particular order of their identifiers. Kept for the {@link Client}-s having
+         * {@link Protocol.Capability#ACKS} only.
+         */
+        volatile long cursor;
+        final AtomicLong latest = new AtomicLong();
+        /**
+         * Set once the {@link Client} is disconnected, so the tasks still holding it let it go, even if a newer
+         * connection of the {@link Client} has taken its place in {@link Server#clients}.
+         */
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        public ClientEntity(UUID uuid, String name, Set<Protocol.Capability> capabilities, long resumeAfter,
+                            Connection connection) {
+            this.uuid = Objects.requireNonNull(uuid);
+            this.name = Objects.requireNonNull(name);
+            this.capabilities = Set.copyOf(capabilities);
+            this.resumeAfter = resumeAfter;
+            this.connection = Objects.requireNonNull(connection);
+        }
+
+        /**
+         * Remembers that the text the {@link Client} gave the identifier to is taken, as are all the texts before it,
+         * since the texts of a {@link Client} are handled one by one.
+         */
+        void take(long sequence) {
+            if (sequence > taken) taken = sequence;
+        }
+
+        /**
+         * Counts a text queued for the {@link Client}. Called by the {@link Server.Distributor}-s and the
+         * {@link Server.Historian}.
+         */
+        void sent() {
+            if (capabilities.contains(Protocol.Capability.ACKS)) latest.incrementAndGet();
+        }
+
+        /**
+         * Checks whether the {@link Client} has frames not written out yet or, having {@link Protocol.Capability#ACKS},
+         * texts not acknowledged yet. The texts of a {@link Client} having lost frames to the
+         * {@link Server.Overflow#DROP_OLDEST} policy are not waited for, as it never gets them all.
+         */
+        boolean lagging() {
+            return lag() > 0 || dropped.get() == 0 && cursor < latest.get();
+        }
+
+        /**
+         * Puts the frame into the outbound queue according to the {@link Server#overflow} policy and signals the
+         * {@link Connection} to write it.
+         *
+         * @param frame the frame shared by all recipients, retained while queued.
+         * @return true if the frame was queued. Otherwise returns false, which means the {@link Client} was
+         * disconnected as a slow consumer.
+         * @throws InterruptedException in case the calling Thread is interrupted while waiting for room in the queue.
+         */
+        boolean offer(BufferPool.Chunk frame) throws InterruptedException {
+            frame.retain();
+            switch (overflow) {
+                case BLOCK:
+                    try {
+                        outbound.put(frame);
+                    } catch (InterruptedException e) {
+                        frame.release();
+                        throw e;
+                    }
+                    // the queue was cleared by disconnecting the client while waiting for room
+                    if (closed.get()) {
+                        drain();
+                        return false;
+                    }
+                    break;
+                case DISCONNECT:
+                    if (!outbound.offer(frame)) {
+                        frame.release();
+                        Log.warn("slow consumer disconnected: " + connection.address());
+                        metrics.slowConsumers.increment();
+                        disconnect(this);
+                        return false;
+                    }
+                    break;
+                default:
+                    while (!outbound.offer(frame)) {
+                        BufferPool.Chunk oldest = outbound.poll();
+                        if (oldest != null) {
+                            oldest.release();
+                            dropped.incrementAndGet();
+                            metrics.droppedFrames.increment();
+                        }
+                    }
+            }
+            queued.incrementAndGet();
+            connection.flush();
+            return true;
+        }
+
+        /**
+         * Encodes the {@link Message} for the {@link Client} alone and puts the frame into the outbound queue as
+         * {@link ClientEntity#offer(BufferPool.Chunk)} does.
+         *
+         * @throws IOException in case the {@link Message} could not be encoded.
+         */
+        boolean offer(Message message) throws IOException, InterruptedException {
+            BufferPool.Chunk frame = connection.codec().encode(message, buffers);
+            try {
+                return offer(frame);
+            } finally {
+                frame.release();
+            }
+        }
+
+        /**
+         * Puts the frame into the outbound queue unless the queue is full, whatever the {@link Server#overflow}
+         * policy, and signals the {@link Connection} to write it. Used for frames not worth waiting or dropping
+         * others for, e.g. heartbeats.
+         *
+         * @param frame the frame shared by all recipients, retained while queued.
+         * @return true if the frame was queued.
+         */
+        boolean tryOffer(BufferPool.Chunk frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+                return false;
+            }
+            queued.incrementAndGet();
+            connection.flush();
+            return true;
+        }
+
+        /**
+         * Encodes the {@link Message} for the {@link Client} alone and puts the frame into the outbound queue as
+         * {@link ClientEntity#tryOffer(BufferPool.Chunk)} does.
+         *
+         * @throws IOException in case the {@link Message} could not be encoded.
+         */
+        boolean tryOffer(Message message) throws IOException {
+            BufferPool.Chunk frame = connection.codec().encode(message, buffers);
+            try {
+                return tryOffer(frame);
+            } finally {
+                frame.release();
+            }
+        }
+
+        /**
+         * Empties the outbound queue, releasing the frames.
+         */
+        void drain() {
+            BufferPool.Chunk frame;
+            while ((frame = outbound.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        /**
+         * Number of frames queued for the {@link Client} but neither written nor dropped yet.
+         */
+        long lag() {
+            return queued.get() - written.get() - dropped.get();
+        }
+
+        /**
+         * Describes the counters of the outbound queue. Used for logging purposes.
+         */
+        String lagReport() {
+            return "lag " + lag() + " (queued " + queued + ", written " + written + ", dropped " + dropped + ")"
+                   + (capabilities.contains(Protocol.Capability.ACKS) ? ", cursor " + cursor + " of " + latest : "");
+        }
+    }
+
+    /**
+     * {@link Connection} over a blocking {@link Socket} used by the "blocking" engine.
+     * Incoming {@link Message}-s are read by a {@link Server.Receiver} dedicated to the {@link Socket}; outgoing
+     * frames are written by a {@link Server.Writer} dedicated to the {@link Socket}.
+     */
+    @SuppressWarnings("InnerClassMayBeStatic")
+    private class SocketConnection implements Connection {
+        private final Socket socket;
+        private final Codec codec;
+        /**
+         * Deliberately not wrapped into a {@link DataOutputStream}: its synchronized writes would pin a virtual
+         * Thread blocked on a slow {@link Client} to its carrier Thread. Nor into a {@link BufferedOutputStream}: the
+         * frames are copied straight from their buffers into {@link SocketConnection#buffer}.
+         */
+        private final OutputStream out;
+        /**
+         * Batch of frames to be written, taking up the first {@link SocketConnection#buffered} bytes.
+         */
+        private final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        private int buffered;
+        private Writer writer;
+        private Receiver receiver;
+
+        public SocketConnection(Socket socket, Codec codec) throws IOException {
+            this.socket = Objects.requireNonNull(socket);
+            this.codec = Objects.requireNonNull(codec);
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public Codec codec() {
+            return codec;
+        }
+
+        @Override
+        public void flush() {
+            // the Writer is already waiting on the outbound queue
+        }
+
+        /**
+         * Buffers the frame to be written to the {@link Socket} by the next {@link SocketConnection#push()}.
+         * Called by the {@link Server.Writer} only.
+         */
+        void write(BufferPool.Chunk frame) throws IOException {
+            ByteBuffer content = frame.buffer();
+            int length;
+            for (int offset = 0; offset < frame.length(); offset += length) {
+                if (buffered == buffer.length) push();
+                length = Math.min(buffer.length - buffered, frame.length() - offset);
+                content.get(offset, buffer, buffered, length);
+                buffered += length;
+            }
+        }
+
+        /**
+         * Writes all buffered frames to the {@link Socket}. Called by the {@link Server.Writer} only.
+         */
+        void push() throws IOException {
+            if (buffered == 0) return;
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the workers are told to stop first, so they take the closed socket for the end rather than a failure
+            if (writer != null) writer.shutdown();
+            if (receiver != null) receiver.shutdown();
+            socket.close();
+        }
+
+        @Override
+        public String address() {
+            return String.valueOf(socket.getInetAddress());
+        }
+    }
+
+    /**
+     * Input stream of a {@link Socket} counting the bytes read from it into the {@link Server#metrics}.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) metrics.bytesIn.increment();
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) metrics.bytesIn.add(read);
+            return read;
+        }
+    }
+
+    /**
+     * Wrapper class to hold together a {@link Message} with its author: the {@link Server.ClientEntity} it was
+     * received from, or null for a {@link Message} restored from the {@link Server#log} or relayed by another node of
+     * the {@link Server#cluster}.
+     * Caches the frames the {@link Message} is encoded into, so a {@link Message} is encoded once per {@link Codec}
+     * no matter how many recipients it has. The cache holds a reference to each frame until
+     * {@link MessageEntity#release()}.
+     */
+    @SuppressWarnings("InnerClassMayBeStatic")
+    class MessageEntity {
+        private final ClientEntity author;
+        private final Message message;
+        /**
+         * Identifier the author gave to the text, or 0 if none.
+         */
+        private final long sequence;
+        private final BufferPool.Chunk[] frames = new BufferPool.Chunk[Codec.values().length];
+        /**
+         * Moment the {@link Message} was received, by {@link System#nanoTime()}.
+         */
+        private final long received = System.nanoTime();
+
+        public MessageEntity(ClientEntity author, Message message) {
+            this(author, message, 0);
+        }
+
+        public MessageEntity(ClientEntity author, Message message, long sequence) {
+            this.author = author;
+            this.message = Objects.requireNonNull(message);
+            this.sequence = sequence;
+        }
+
+        /**
+         * Retrieves the frame holding the {@link Message} encoded by the {@link Codec}, encoding it on first request.
+         * Not thread-safe: supposed to be called by the {@link Server.Distributor} of the {@link Message}'s room only.
+         *
+         * @return the frame shared by all recipients using the {@link Codec}, to be retained by those keeping it.
+         * @throws IOException in case the {@link Message} could not be encoded.
+         */
+        public BufferPool.Chunk frame(Codec codec) throws IOException {
+            BufferPool.Chunk frame = frames[codec.ordinal()];
+            if (frame == null) {
+                frame = codec.encode(message, buffers);
+                frames[codec.ordinal()] = frame;
+            }
+            return frame;
+        }
+
+        /**
+         * Drops the cached frames, giving them back to the {@link Server#buffers} once their holders are done. The
+         * frames are encoded again if requested afterwards.
+         */
+        void release() {
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i] != null) frames[i].release();
+                frames[i] = null;
+            }
         }
     }
 
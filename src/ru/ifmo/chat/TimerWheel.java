@@ -0,0 +1,131 @@
+package ru.ifmo.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed wheel of timers run by a single Thread, however many timers are scheduled.
+ * <p>
+ * Time is cut into ticks of a fixed duration; the wheel is a ring of slots, one per tick, each holding the timers due
+ * within its tick. Every tick the Thread runs the due timers of the next slot, so scheduling and expiring a timer take
+ * constant time. Timers due further than a turn of the wheel wait in their slot for the remaining number of turns.
+ * Timers fire no earlier than scheduled and up to a tick later. Tasks are run by the Thread of the wheel, so they
+ * are supposed to be short and never to block.
+ * Supposed to be started via {@link WorkerPool}.
+ */
+class TimerWheel extends Worker {
+    /**
+     * A scheduled task. Touched by the Thread of the wheel only, once taken from the pending queue.
+     */
+    private static final class Timer {
+        private final long deadline;
+        private final Runnable task;
+        /**
+         * Number of turns of the wheel left before the timer is due.
+         */
+        private long rounds;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private final long duration;
+    private final List<Deque<Timer>> slots;
+    private final int mask;
+    /**
+     * Timers scheduled since the last tick, moved into the slots by the Thread of the wheel.
+     */
+    private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    /**
+     * Number of the tick being waited for.
+     */
+    private long tick;
+
+    /**
+     * @param duration duration of a tick.
+     * @param unit     unit of the duration.
+     * @param size     number of slots of the wheel. Rounded up to a power of two.
+     */
+    TimerWheel(long duration, TimeUnit unit, int size) {
+        if (duration <= 0 || size <= 0) throw new IllegalArgumentException("tick and size must be positive");
+        this.duration = unit.toNanos(duration);
+        int slots = Math.max(Integer.highestOneBit(size - 1) << 1, 1);
+        this.slots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots.add(new ArrayDeque<>());
+        }
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Schedules the task to be run once the delay passes. May be called by any Thread.
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        pending.add(new Timer(System.nanoTime() + unit.toNanos(delay), task));
+    }
+
+    @Override
+    protected void init() {
+        Log.info("timer wheel started: " + slots.size() + " slots of " + TimeUnit.NANOSECONDS.toMillis(duration)
+                 + " ms");
+    }
+
+    @Override
+    protected void loop() {
+        long wait = start + tick * duration - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        transfer();
+        Iterator<Timer> timers = slots.get((int) (tick & mask)).iterator();
+        while (timers.hasNext()) {
+            Timer timer = timers.next();
+            if (timer.rounds > 0) {
+                timer.rounds--;
+                continue;
+            }
+            timers.remove();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                Log.error("timer task failed", e);
+            }
+        }
+        tick++;
+    }
+
+    @Override
+    protected void stop() {
+        pending.clear();
+        for (Deque<Timer> slot : slots) {
+            slot.clear();
+        }
+    }
+
+    /**
+     * Moves the pending timers into the slots of the ticks they are due within. Overdue timers go into the slot of
+     * the current tick.
+     */
+    private void transfer() {
+        Timer timer;
+        while ((timer = pending.poll()) != null) {
+            long due = Math.max(Math.ceilDiv(timer.deadline - start, duration), tick);
+            timer.rounds = (due - tick) / slots.size();
+            slots.get((int) (due & mask)).add(timer);
+        }
+    }
+}
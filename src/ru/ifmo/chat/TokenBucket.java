@@ -0,0 +1,47 @@
+package ru.ifmo.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of some events, e.g. of {@link Message}-s posted by a {@link Client}.
+ * <p>
+ * The bucket holds up to the burst number of tokens and is refilled at the steady rate. Every event takes a token;
+ * an event finding the bucket empty is over the limit. So a sender may exceed the rate for a while, by the burst at
+ * most, but not in the long run. The bucket is refilled lazily when a token is requested, so an idle bucket costs
+ * nothing. Not thread-safe: supposed to be used by a single Thread, e.g. the one reading the {@link Client}'s
+ * connection.
+ */
+class TokenBucket {
+    /**
+     * Tokens added per nanosecond.
+     */
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    /**
+     * @param rate  tokens added per second.
+     * @param burst maximal number of tokens the bucket holds. The bucket starts full.
+     */
+    TokenBucket(double rate, int burst) {
+        if (rate <= 0 || burst <= 0) throw new IllegalArgumentException("rate and burst must be positive");
+        this.rate = rate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @return true if a token was taken. Otherwise returns false, which means the event is over the limit.
+     */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate);
+        refilled = now;
+        if (tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+}
@@ -6,18 +6,31 @@ package ru.ifmo.chat;
  * Followed by infinite execution of {@link Worker#loop()} method in an infinite loop until the process is not
  * terminated.
  * Termination followed by calling {@link Worker#stop()} method to properly end up the Thread.
+ * The process may be terminated from outside by {@link Worker#shutdown()}.
+ * Supposed to be started via {@link WorkerPool}, which decides on what kind of Thread the Worker runs.
  */
 public abstract class Worker implements Runnable {
+    /**
+     * Cleared by {@link Worker#shutdown()} to let the infinite loop end.
+     */
+    private volatile boolean running = true;
+    /**
+     * The Thread currently running this Worker, if any.
+     */
+    private volatile Thread thread;
+
     @Override
     public void run() {
+        thread = Thread.currentThread();
         try {
             init();
-            while (!isInterrupted()) {
+            while (running && !isInterrupted()) {
                 loop();
             }
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            if (running) throw new RuntimeException(e);
         } finally {
+            thread = null;
             try {
                 stop();
             } catch (Exception e) {
@@ -46,6 +59,45 @@ public abstract class Worker implements Runnable {
      */
     protected abstract void stop() throws Exception;
 
+    /**
+     * Requests this Worker to terminate. The Thread running it is interrupted, unless
+     * {@link Worker#interruptOnShutdown()} tells otherwise, and {@link Worker#unblock()} is called to release a
+     * blocking call that does not respond to interruption.
+     * Exceptions thrown by the {@link Worker#loop()} after the shutdown request are treated as a consequence of the
+     * termination and are not rethrown.
+     */
+    public void shutdown() {
+        running = false;
+        Thread current = thread;
+        if (current != null && interruptOnShutdown()) current.interrupt();
+        try {
+            unblock();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Releases a blocking call of the {@link Worker#loop()} that does not respond to interruption, e.g. closes a
+     * socket the Worker reads from. Called from the Thread requesting the {@link Worker#shutdown()}.
+     * Does nothing by default.
+     *
+     * @throws Exception may throw any kind of exceptions.
+     */
+    protected void unblock() throws Exception {
+    }
+
+    /**
+     * Tells whether {@link Worker#shutdown()} interrupts the Thread running this Worker. A Worker whose work an
+     * interrupt would break, e.g. a write to a FileChannel, which an interrupt closes, returns false and relies on
+     * {@link Worker#unblock()} to wake its Thread up; the {@link Worker#loop()} then ends after its current iteration.
+     *
+     * @return true by default.
+     */
+    protected boolean interruptOnShutdown() {
+        return true;
+    }
+
     /**
      * Checks if the Thread running this Worker implementation is interrupted.
      * @return true if the Thread running this Worker implementation is already interrupted. Otherwise returns false.
@@ -0,0 +1,101 @@
+package ru.ifmo.chat;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor layer behind {@link Worker}-s. Runs each started {@link Worker} on a Thread of the chosen
+ * {@link WorkerPool.Mode} and keeps track of the running ones to be able to terminate them on
+ * {@link WorkerPool#shutdown(long, TimeUnit)}.
+ */
+public class WorkerPool {
+    /**
+     * Kind of Threads {@link Worker}-s run on.
+     */
+    public enum Mode {
+        /**
+         * A new platform Thread per {@link Worker}.
+         */
+        PLATFORM,
+        /**
+         * A new virtual Thread per {@link Worker}. Cheap enough to run a {@link Worker} per connected {@link Client}
+         * while keeping its code blocking.
+         */
+        VIRTUAL,
+        /**
+         * A fixed number of platform Threads. {@link Worker}-s started above the limit wait until one of the running
+         * {@link Worker}-s terminates.
+         */
+        POOLED;
+
+        /**
+         * Parses the {@link WorkerPool.Mode} from its case-insensitive name, as set in settings files.
+         */
+        public static Mode of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Set<Worker> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name prefix for names of the Threads.
+     * @param mode kind of Threads to run {@link Worker}-s on.
+     * @param size number of Threads for the {@link WorkerPool.Mode#POOLED} mode. Ignored by other modes.
+     */
+    public WorkerPool(String name, Mode mode, int size) {
+        Objects.requireNonNull(name);
+        switch (Objects.requireNonNull(mode)) {
+            case VIRTUAL:
+                executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+                break;
+            case POOLED:
+                if (size <= 0) throw new IllegalArgumentException("pool size must be positive: " + size);
+                executor = Executors.newFixedThreadPool(size, platform(name));
+                break;
+            default:
+                executor = Executors.newThreadPerTaskExecutor(platform(name));
+        }
+    }
+
+    private static ThreadFactory platform(String name) {
+        return Thread.ofPlatform().name(name + "-", 0).factory();
+    }
+
+    /**
+     * Starts up the {@link Worker}.
+     */
+    public void start(Worker worker) {
+        Objects.requireNonNull(worker);
+        running.add(worker);
+        executor.execute(() -> {
+            try {
+                worker.run();
+            } finally {
+                running.remove(worker);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new {@link Worker}-s, requests all running ones to {@link Worker#shutdown()} and awaits their
+     * termination.
+     *
+     * @return true if all {@link Worker}-s terminated in time. Otherwise returns false.
+     * @throws InterruptedException in case the calling Thread is interrupted while waiting.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        running.forEach(Worker::shutdown);
+        if (executor.awaitTermination(timeout, unit)) return true;
+        executor.shutdownNow();
+        return false;
+    }
+}
@@ -0,0 +1,108 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(4L * BufferPool.SLAB_SIZE);
+
+    @Test
+    void lendsChunksOfSizeClassesOffHeap() {
+        BufferPool.Chunk chunk = pool.acquire(300);
+        assertTrue(chunk.buffer().isDirect());
+        assertEquals(2 * BufferPool.MIN_CHUNK, chunk.buffer().capacity());
+        assertEquals(1, pool.lent());
+        assertEquals(BufferPool.SLAB_SIZE, pool.reserved());
+        chunk.release();
+        assertEquals(0, pool.lent());
+    }
+
+    @Test
+    void servesOversizedRequestsUnpooled() {
+        BufferPool.Chunk chunk = pool.acquire(BufferPool.MAX_CHUNK + 1);
+        assertFalse(chunk.buffer().isDirect());
+        assertEquals(1, pool.unpooled());
+        assertEquals(0, pool.lent());
+        chunk.release();
+        assertEquals(0, pool.reserved());
+    }
+
+    @Test
+    void servesRequestsUnpooledOnceCapacityIsTakenUp() {
+        BufferPool small = new BufferPool(BufferPool.SLAB_SIZE);
+        BufferPool.Chunk pooled = small.acquire(BufferPool.MAX_CHUNK);
+        BufferPool.Chunk other = small.acquire(BufferPool.MIN_CHUNK);
+        assertTrue(pooled.buffer().isDirect());
+        assertFalse(other.buffer().isDirect());
+        assertEquals(1, small.unpooled());
+        pooled.release();
+        other.release();
+    }
+
+    @Test
+    void givesChunkBackOnLastRelease() {
+        BufferPool.Chunk chunk = pool.acquire(100);
+        chunk.buffer().put((byte) 1).flip();
+        assertSame(chunk, chunk.retain());
+        chunk.release();
+        assertEquals(1, pool.lent());
+        chunk.release();
+        assertEquals(0, pool.lent());
+        // the chunk given back is lent out again, cleared
+        BufferPool.Chunk again = pool.acquire(100);
+        assertSame(chunk, again);
+        assertEquals(0, again.buffer().position());
+        assertEquals(again.buffer().capacity(), again.buffer().limit());
+        again.release();
+    }
+
+    @Test
+    void misuseLeavesCountIntact() {
+        BufferPool.Chunk chunk = pool.acquire(100);
+        chunk.release();
+        assertThrows(IllegalStateException.class, chunk::release);
+        // a count moved by the failed calls would let one of them through
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalStateException.class, chunk::retain);
+        }
+        assertEquals(0, pool.lent());
+        BufferPool.Chunk again = pool.acquire(100);
+        assertSame(chunk, again);
+        again.release();
+        assertEquals(0, pool.lent());
+        assertThrows(IllegalStateException.class, again::release);
+    }
+
+    @Test
+    void recoversChunksLostWithoutRelease() throws InterruptedException {
+        lose(pool.acquire(100));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.leaks() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(1, pool.leaks());
+        assertEquals(0, pool.lent());
+        // the memory is lent out again without carving another slab
+        BufferPool.Chunk chunk = pool.acquire(100);
+        assertEquals(BufferPool.SLAB_SIZE, pool.reserved());
+        chunk.release();
+    }
+
+    @Test
+    void disabledPoolLendsHeapBuffers() {
+        BufferPool disabled = new BufferPool(0);
+        BufferPool.Chunk chunk = disabled.acquire(100);
+        assertFalse(chunk.buffer().isDirect());
+        assertEquals(1, disabled.unpooled());
+        chunk.release();
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(-1));
+    }
+
+    private static void lose(BufferPool.Chunk chunk) {
+        chunk.buffer().put((byte) 1);
+    }
+}
@@ -0,0 +1,76 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterTest {
+    private static final List<InetSocketAddress> NODES = Cluster.parse("localhost:9001, localhost:9002,localhost:9003");
+
+    private final Server server = new Server(new Properties());
+
+    @Test
+    void parsesListOfAddresses() {
+        assertEquals(List.of(new InetSocketAddress("localhost", 9001), new InetSocketAddress("localhost", 9002),
+                new InetSocketAddress("localhost", 9003)), NODES);
+        assertThrows(IllegalArgumentException.class, () -> Cluster.parse("localhost"));
+        assertThrows(IllegalArgumentException.class, () -> Cluster.parse("localhost:port"));
+    }
+
+    @Test
+    void identifiersAreUniqueAcrossNodes() {
+        Set<Long> ids = new HashSet<>();
+        for (int node = 0; node < NODES.size(); node++) {
+            Cluster cluster = cluster(node, 4);
+            for (long sequence = 1; sequence <= 100; sequence++) {
+                long id = cluster.id(sequence);
+                assertTrue(ids.add(id));
+                assertEquals(sequence, cluster.sequence(id));
+                // a node takes the sequence of any node back from its identifiers
+                assertEquals(sequence, cluster(0, 4).sequence(id));
+            }
+        }
+    }
+
+    @Test
+    void dropsOldestTextsQueuedBeyondCapacity() throws IOException {
+        Cluster cluster = cluster(0, 2);
+        BufferPool pool = new BufferPool(BufferPool.SLAB_SIZE);
+        for (int i = 0; i < 3; i++) {
+            BufferPool.Chunk frame = Codec.BINARY.encode(new Message("alice", "text " + i), pool);
+            cluster.relay(frame);
+            frame.release();
+        }
+        // each of the two other nodes keeps the two most recent texts
+        assertEquals(2, cluster.lagging());
+        assertEquals(2, server.metrics.getRelayDropped());
+        assertEquals(2, pool.lent());
+    }
+
+    @Test
+    void rejectsNodeOutOfList() {
+        assertThrows(IllegalArgumentException.class, () -> cluster(3, 4));
+        assertThrows(IllegalArgumentException.class, () -> cluster(-1, 4));
+    }
+
+    @Test
+    void admitsLinksFromListedHostsOnly() throws IOException {
+        Cluster cluster = cluster(0, 4);
+        assertTrue(cluster.admits(1, InetAddress.getByName("127.0.0.1")));
+        // any loopback address stands for "localhost"
+        assertTrue(cluster.admits(2, InetAddress.getByName("::1")));
+        assertFalse(cluster.admits(1, InetAddress.getByName("192.0.2.1")));
+    }
+
+    private Cluster cluster(int node, int capacity) {
+        return new Cluster(server, NODES, node, capacity, 16, 0, 1024);
+    }
+}
@@ -0,0 +1,202 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodecTest {
+    private static final Message TEXT = new Message(42, Message.Kind.TEXT, "alice", "room",
+            "Hello, мир 😀!", 1_700_000_000_000L, 1_700_000_000_123L);
+
+    @ParameterizedTest
+    @EnumSource(Codec.class)
+    void roundTrip(Codec codec) throws IOException {
+        assertEqual(TEXT, decode(codec, codec.encode(TEXT)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Codec.class)
+    void roundTripOfEveryKind(Codec codec) throws IOException {
+        for (Message message : new Message[]{Message.join("bob", "room"), Message.leave("bob", "room"),
+                Message.history("bob", "room", 7), Message.direct("bob", "alice", "psst"),
+                Message.search("bob", "from:alice hello"), Message.ping(), Message.hello("bob", "compression"),
+                Message.ack(3), Message.resume(9)}) {
+            assertEqual(message, decode(codec, codec.encode(message)));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Codec.class)
+    void pooledFrameMatchesHeapFrame(Codec codec) throws IOException {
+        BufferPool pool = new BufferPool(BufferPool.SLAB_SIZE);
+        for (Message message : new Message[]{TEXT, longText()}) {
+            BufferPool.Chunk frame = codec.encode(message, pool);
+            byte[] pooled = new byte[frame.length()];
+            frame.buffer().get(0, pooled);
+            frame.release();
+            assertArrayEquals(codec.encode(message), pooled);
+        }
+        assertEquals(0, pool.lent());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Codec.class)
+    void roundTripWithoutTimestamp(Codec codec) throws IOException {
+        Message message = new Message("bob", "");
+        assertEqual(message, decode(codec, codec.encode(message)));
+    }
+
+    @Test
+    void compressedDeflatesLongPayloads() throws IOException {
+        Message message = longText();
+        byte[] deflated = Codec.COMPRESSED.encode(message);
+        assertTrue(deflated.length < Codec.BINARY.encode(message).length / 4);
+        assertEqual(message, decode(Codec.COMPRESSED, deflated));
+    }
+
+    @Test
+    void serializedDecodesMessageOfBaselineClient() throws IOException {
+        ZonedDateTime sent = Instant.ofEpochMilli(1_700_000_000_000L).atZone(ZoneId.of("Europe/Moscow"));
+        byte[] payload = baseline(new Legacy("alice", "hi", sent));
+        Message decoded = Codec.SERIALIZED.decode(payload, 0, payload.length);
+        assertEquals(Message.Kind.TEXT, decoded.getKind());
+        assertEquals(Message.DEFAULT_ROOM, decoded.getRoom());
+        assertEquals("alice", decoded.getSender());
+        assertEquals("hi", decoded.getMessage());
+        assertEquals(sent.toInstant().toEpochMilli(), decoded.getSent());
+        assertEquals(0, decoded.getId());
+    }
+
+    @Test
+    void binaryIsSmallerThanSerialized() throws IOException {
+        assertTrue(Codec.BINARY.encode(TEXT).length * 2 < Codec.SERIALIZED.encode(TEXT).length);
+    }
+
+    @Test
+    void binaryDecodesPayloadWithoutReceivedTimestamp() throws IOException {
+        byte[] frame = Codec.BINARY.encode(TEXT);
+        byte[] legacy = Arrays.copyOf(frame, frame.length - Long.BYTES);
+        ByteBuffer.wrap(legacy).putInt(legacy.length - Protocol.HEADER_LENGTH);
+        Message decoded = decode(Codec.BINARY, legacy);
+        assertEquals(TEXT.getMessage(), decoded.getMessage());
+        assertEquals(TEXT.getSent(), decoded.getSent());
+        assertEquals(0, decoded.getReceived());
+    }
+
+    @Test
+    void negotiatesVersionKnownToBothSides() {
+        assertSame(Codec.SERIALIZED, Codec.of(1));
+        assertSame(Codec.BINARY, Codec.of(2));
+        assertSame(Codec.COMPRESSED, Codec.of(3));
+        assertNull(Codec.of(0));
+        assertEquals(Protocol.VERSION, Protocol.negotiate(Protocol.VERSION + 1, true));
+        // a server not willing to compress holds clients preceding the hello exchange to the binary codec
+        assertEquals(Codec.BINARY.version(), Protocol.negotiate(Codec.COMPRESSED.version(), false));
+        assertEquals(Protocol.HELLO_VERSION, Protocol.negotiate(Protocol.HELLO_VERSION, false));
+        // since the hello exchange, the codec follows the agreed capabilities rather than the version
+        assertSame(Codec.COMPRESSED, Protocol.codec(Protocol.VERSION, EnumSet.of(Protocol.Capability.COMPRESSION)));
+        assertSame(Codec.BINARY, Protocol.codec(Protocol.VERSION, EnumSet.noneOf(Protocol.Capability.class)));
+        assertSame(Codec.COMPRESSED, Protocol.codec(3, Protocol.implied(3)));
+        // the first character of a bare UUID of a version 1 client is never taken for a version
+        for (char first : "0123456789abcdef".toCharArray()) {
+            assertFalse(Protocol.isVersion(first));
+        }
+    }
+
+    @Test
+    void malformedFramesAreRejected() throws IOException {
+        byte[] frame = Codec.BINARY.encode(TEXT);
+        byte[] unknownKind = frame.clone();
+        unknownKind[Protocol.HEADER_LENGTH] = 127;
+        assertThrows(StreamCorruptedException.class, () -> decode(Codec.BINARY, unknownKind));
+        assertThrows(StreamCorruptedException.class,
+                () -> Codec.BINARY.decode(frame, Protocol.HEADER_LENGTH, 20));
+        assertThrows(StreamCorruptedException.class, () -> Codec.COMPRESSED.decode(new byte[]{5}, 0, 1));
+        assertThrows(StreamCorruptedException.class, () -> Codec.COMPRESSED.decode(new byte[0], 0, 0));
+    }
+
+    private static Message longText() {
+        return new Message(7, Message.Kind.TEXT, "bob", "room", "all work and no play ".repeat(200),
+                1_700_000_000_000L, 1_700_000_000_001L);
+    }
+
+    private static Message decode(Codec codec, byte[] frame) throws IOException {
+        if (codec == Codec.SERIALIZED) return codec.decode(frame, 0, frame.length);
+        assertEquals(frame.length - Protocol.HEADER_LENGTH, ByteBuffer.wrap(frame).getInt());
+        return codec.decode(frame, Protocol.HEADER_LENGTH, frame.length - Protocol.HEADER_LENGTH);
+    }
+
+    private static void assertEqual(Message expected, Message actual) {
+        assertEquals(expected.getKind(), actual.getKind());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.getSent(), actual.getSent());
+        assertEquals(expected.getReceived(), actual.getReceived());
+    }
+
+    /**
+     * Serializes the stand-in as the baseline {@link Client} serializes its Message: the class descriptor is renamed,
+     * and the stream header is cut off, as the {@link Codec#SERIALIZED} payload goes without it.
+     */
+    private static byte[] baseline(Legacy message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        byte[] stream = bytes.toByteArray();
+        byte[] from = utf(Legacy.class.getName());
+        byte[] to = utf(Message.class.getName());
+        int at = indexOf(stream, from);
+        assertTrue(at > 0);
+        ByteArrayOutputStream renamed = new ByteArrayOutputStream();
+        renamed.write(stream, Protocol.STREAM_HEADER.length, at - Protocol.STREAM_HEADER.length);
+        renamed.write(to);
+        renamed.write(stream, at + from.length, stream.length - at - from.length);
+        return renamed.toByteArray();
+    }
+
+    private static byte[] utf(String value) {
+        byte[] chars = value.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Short.BYTES + chars.length).putShort((short) chars.length).put(chars).array();
+    }
+
+    private static int indexOf(byte[] array, byte[] part) {
+        for (int i = 0; i + part.length <= array.length; i++) {
+            if (Arrays.equals(array, i, i + part.length, part, 0, part.length)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The Message of the {@link Client}-s deployed before the versioned handshake: the same serial version and fields.
+     */
+    private static class Legacy implements Serializable {
+        private static final long serialVersionUID = -1149824051982682141L;
+        private final String sender;
+        private final String message;
+        private final ZonedDateTime sent;
+
+        Legacy(String sender, String message, ZonedDateTime sent) {
+            this.sender = sender;
+            this.message = message;
+            this.sent = sent;
+        }
+    }
+}
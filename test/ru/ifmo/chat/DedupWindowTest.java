@@ -0,0 +1,78 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupWindowTest {
+    private static final UUID ALICE = UUID.randomUUID();
+    private static final UUID BOB = UUID.randomUUID();
+
+    @Test
+    void remembersFingerprintsWithinWindow() {
+        DedupWindow dedup = new DedupWindow(1, TimeUnit.HOURS, 16);
+        dedup.add(DedupWindow.fingerprint(ALICE, 1));
+        assertTrue(dedup.contains(DedupWindow.fingerprint(ALICE, 1)));
+        assertFalse(dedup.contains(DedupWindow.fingerprint(ALICE, 2)));
+        assertFalse(dedup.contains(DedupWindow.fingerprint(BOB, 1)));
+    }
+
+    @Test
+    void fingerprintsDifferPerClientAndIdentifier() {
+        Set<Long> fingerprints = new HashSet<>();
+        for (long id = 0; id < 10_000; id++) {
+            assertTrue(fingerprints.add(DedupWindow.fingerprint(ALICE, id)));
+            assertTrue(fingerprints.add(DedupWindow.fingerprint(BOB, id)));
+        }
+        assertFalse(fingerprints.contains(0L));
+    }
+
+    @Test
+    void keepsPreviousGenerationOnceCurrentIsFull() {
+        DedupWindow dedup = new DedupWindow(1, TimeUnit.HOURS, 4);
+        for (long id = 1; id <= 8; id++) {
+            dedup.add(DedupWindow.fingerprint(ALICE, id));
+        }
+        // two full generations are remembered, the third one pushes the oldest out
+        for (long id = 1; id <= 8; id++) {
+            assertTrue(dedup.contains(DedupWindow.fingerprint(ALICE, id)), "id " + id);
+        }
+        dedup.add(DedupWindow.fingerprint(ALICE, 9));
+        for (long id = 1; id <= 4; id++) {
+            assertFalse(dedup.contains(DedupWindow.fingerprint(ALICE, id)), "id " + id);
+        }
+        for (long id = 5; id <= 9; id++) {
+            assertTrue(dedup.contains(DedupWindow.fingerprint(ALICE, id)), "id " + id);
+        }
+    }
+
+    @Test
+    void addingTwiceTakesNoRoom() {
+        DedupWindow dedup = new DedupWindow(1, TimeUnit.HOURS, 2);
+        for (int i = 0; i < 10; i++) {
+            dedup.add(DedupWindow.fingerprint(ALICE, 1));
+        }
+        dedup.add(DedupWindow.fingerprint(ALICE, 2));
+        dedup.add(DedupWindow.fingerprint(ALICE, 3));
+        assertTrue(dedup.contains(DedupWindow.fingerprint(ALICE, 1)));
+    }
+
+    @Test
+    void forgetsFingerprintsAfterTwiceTheWindow() throws InterruptedException {
+        DedupWindow dedup = new DedupWindow(20, TimeUnit.MILLISECONDS, 16);
+        dedup.add(DedupWindow.fingerprint(ALICE, 1));
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(dedup.contains(DedupWindow.fingerprint(ALICE, 1)));
+    }
+
+    @Test
+    void rejectsNonPositiveSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new DedupWindow(0, TimeUnit.SECONDS, 16));
+        assertThrows(IllegalArgumentException.class, () -> new DedupWindow(1, TimeUnit.SECONDS, 0));
+    }
+}
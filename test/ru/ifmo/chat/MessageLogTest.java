@@ -0,0 +1,195 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+    /**
+     * Fits a couple of records, so a few texts take up several segments.
+     */
+    private static final long SEGMENT_SIZE = 160;
+
+    @TempDir
+    Path directory;
+    private final BufferPool pool = new BufferPool(BufferPool.SLAB_SIZE);
+
+    @Test
+    void resumesAfterGreatestLoggedIdentifier() throws Exception {
+        MessageLog log = log(100);
+        assertEquals(0, log.open(message -> fail("empty log")));
+        append(log, 1, 2, 3, 4, 5, 6);
+        assertTrue(segments().size() > 1);
+
+        List<Long> last = new ArrayList<>();
+        assertEquals(6, log(100).open(message -> last.add(message.getId())));
+        assertEquals(6L, last.get(last.size() - 1));
+        assertEquals(0, pool.lent());
+    }
+
+    @Test
+    void recoversGreatestIdentifierOfWholeLog() throws Exception {
+        MessageLog log = log(100);
+        log.open(message -> {
+        });
+        append(log, 1, 2, 10);
+        // texts of a slower room, appended after a greater identifier, land in a segment of their own
+        MessageLog later = log(100);
+        assertEquals(10, later.open(message -> {
+        }));
+        append(later, 6, 7);
+
+        assertEquals(10, log(100).open(message -> {
+        }));
+    }
+
+    @Test
+    void cutsTornRecordOffTheEnd() throws Exception {
+        MessageLog log = log(100);
+        log.open(message -> {
+        });
+        append(log, 1, 2, 3);
+        List<Path> segments = segments();
+        Path last = segments.get(segments.size() - 1);
+        long valid = Files.size(last);
+        Files.write(last, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        MessageLog reopened = log(100);
+        assertEquals(3, reopened.open(message -> {
+        }));
+        assertEquals(valid, Files.size(last));
+        append(reopened, 4);
+        assertEquals(4, log(100).open(message -> {
+        }));
+    }
+
+    @Test
+    void pagesOlderTextsOfRoom() throws Exception {
+        MessageLog log = log(100);
+        log.open(message -> {
+        });
+        append(log, LongStream.rangeClosed(1, 10).toArray());
+        // even identifiers are posted to "even", odd ones to "odd"
+        assertEquals(List.of(4L, 6L, 8L), ids(log.page("even", 10, 3)));
+        assertEquals(List.of(1L, 3L), ids(log.page("odd", 4, 5)));
+        assertEquals(List.of(), ids(log.page("none", 10, 5)));
+    }
+
+    @Test
+    void pagesPastSegmentsWithoutOlderTextsOfRoom() throws Exception {
+        MessageLog log = log(100);
+        log.open(message -> {
+        });
+        List<Message> texts = new ArrayList<>();
+        for (long id = 1; id <= 12; id++) {
+            texts.add(text(id <= 6 ? "quiet" : "busy", id));
+        }
+        append(log, texts);
+        MessageLog reopened = log(100);
+        reopened.open(message -> {
+        });
+        reopened.replay(message -> {
+        });
+        // the first segment holds "quiet" texts only: any read of it would fail now
+        Path first = segments().get(0);
+        Files.delete(first);
+        Files.createDirectory(first);
+
+        List<Long> busy = LongStream.rangeClosed(7, 12).boxed().toList();
+        assertEquals(busy, ids(log.page("busy", 13, 10)));
+        assertEquals(busy, ids(reopened.page("busy", 13, 10)));
+        assertThrows(IOException.class, () -> log.page("quiet", 13, 10));
+    }
+
+    @Test
+    void keepsRetainedNumberOfSegments() throws Exception {
+        MessageLog log = log(2);
+        log.open(message -> {
+        });
+        append(log, LongStream.rangeClosed(1, 12).toArray());
+        List<Path> segments = segments();
+        assertEquals(2, segments.size());
+        assertFalse(segments.get(0).getFileName().toString().startsWith(String.format("%020d", 1)));
+        assertEquals(12, log(2).open(message -> {
+        }));
+    }
+
+    @Test
+    void appendsBatchesInFlightOnShutdown() throws Exception {
+        MessageLog log = new MessageLog(directory, 1 << 20, 1, MessageLog.Sync.BATCH, 0, 1024);
+        log.open(message -> {
+        });
+        MessageLog.Appender appender = log.new Appender();
+        Thread thread = new Thread(appender, "appender");
+        thread.start();
+        for (long id = 1; id <= 4000; id++) {
+            BufferPool.Chunk frame = Codec.BINARY.encode(text(id), pool);
+            log.append(text(id), frame);
+            frame.release();
+        }
+        // the Appender is amid its batches yet, with up to a queue of texts behind them
+        appender.shutdown();
+        thread.join();
+        List<Long> appended = new ArrayList<>();
+        log.replay(message -> appended.add(message.getId()));
+        assertEquals(4000, appended.size());
+        assertEquals(LongStream.rangeClosed(1, 4000).boxed().toList(), appended);
+        assertEquals(0, pool.lent());
+    }
+
+    private MessageLog log(int retention) {
+        return new MessageLog(directory, SEGMENT_SIZE, retention, MessageLog.Sync.NEVER, 0, 1024);
+    }
+
+    /**
+     * Appends the texts one by one, each by a batch of its own, and closes the log.
+     */
+    private void append(MessageLog log, long... ids) throws Exception {
+        append(log, LongStream.of(ids).mapToObj(MessageLogTest::text).toList());
+    }
+
+    private void append(MessageLog log, List<Message> texts) throws Exception {
+        MessageLog.Appender appender = log.new Appender();
+        appender.init();
+        for (Message text : texts) {
+            BufferPool.Chunk frame = Codec.BINARY.encode(text, pool);
+            log.append(text, frame);
+            frame.release();
+            appender.loop();
+        }
+        appender.stop();
+    }
+
+    /**
+     * Makes up the text of the given identifier: even identifiers are posted to "even", odd ones to "odd".
+     */
+    private static Message text(long id) {
+        return text(id % 2 == 0 ? "even" : "odd", id);
+    }
+
+    private static Message text(String room, long id) {
+        Message message = new Message("alice", room, "text " + id);
+        message.setId(id);
+        return message;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        return messages.stream().map(Message::getId).toList();
+    }
+}
@@ -0,0 +1,90 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+    private final SearchIndex index = new SearchIndex(4);
+    private long ids;
+
+    @Test
+    void findsTextsHavingAllKeywordsOldestFirst() {
+        add("alice", "general", 1000, "Deploy is done");
+        add("bob", "general", 2000, "the deploy failed, rolling back");
+        add("carol", "general", 3000, "DEPLOY done again");
+        assertEquals(List.of(1L, 3L), ids(search("deploy done")));
+        assertEquals(List.of(2L), ids(search("rolling deploy")));
+        assertEquals(List.of(), ids(search("deploy nothing")));
+    }
+
+    @Test
+    void narrowsBySenderAndTimeRange() {
+        add("alice", "general", 1000, "lunch?");
+        add("Bob", "general", 2000, "lunch at noon");
+        add("alice", "general", 3000, "lunch at one");
+        assertEquals(List.of(2L), ids(search("lunch from:bob")));
+        assertEquals(List.of(1L, 3L), ids(search("from:alice")));
+        assertEquals(List.of(2L, 3L), ids(search("lunch after:2000")));
+        assertEquals(List.of(1L, 2L), ids(search("before:2000")));
+        assertEquals(List.of(3L), ids(search("from:alice after:1500 before:3000")));
+    }
+
+    @Test
+    void findsTextsOfVisibleRoomsOnly() {
+        add("alice", "general", 1000, "secret plan");
+        add("alice", "staff", 2000, "secret plan");
+        assertEquals(List.of(1L), ids(index.search(SearchIndex.Query.parse("secret"), "general"::equals, 10)));
+    }
+
+    @Test
+    void keepsTheMostRecentWithinLimit() {
+        for (int i = 0; i < 3; i++) {
+            add("alice", "general", 1000 + i, "ping");
+        }
+        assertEquals(List.of(2L, 3L), ids(index.search(SearchIndex.Query.parse("ping"), room -> true, 2)));
+    }
+
+    @Test
+    void evictsTheOldestBeyondCapacity() {
+        add("alice", "general", 1000, "first words");
+        for (int i = 0; i < 4; i++) {
+            add("bob", "general", 2000 + i, "filler words");
+        }
+        assertEquals(4, index.size());
+        assertEquals(List.of(), ids(search("first")));
+        assertEquals(List.of(), ids(search("from:alice")));
+        assertEquals(List.of(2L, 3L, 4L, 5L), ids(search("words")));
+        // the postings keep working once the evicted documents are cut off their heads
+        add("alice", "general", 3000, "first again");
+        assertEquals(List.of(6L), ids(search("first")));
+        assertEquals(List.of(3L, 4L, 5L), ids(search("filler")));
+    }
+
+    @Test
+    void tokenizesLetterAndDigitRunsOfTwoCharactersAtLeast() {
+        assertEquals(Set.of("hello", "world", "42", "мир"), SearchIndex.tokens("Hello, world! a 42 мир"));
+    }
+
+    @Test
+    void emptyQueryFindsNothing() {
+        add("alice", "general", 1000, "anything");
+        assertEquals(List.of(), search(" "));
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("after:yesterday"));
+    }
+
+    private void add(String sender, String room, long received, String text) {
+        index.add(new Message(++ids, Message.Kind.TEXT, sender, room, text, received, received));
+    }
+
+    private List<Message> search(String query) {
+        return index.search(SearchIndex.Query.parse(query), room -> true, 10);
+    }
+
+    private static List<Long> ids(List<Message> found) {
+        return found.stream().map(Message::getId).toList();
+    }
+}
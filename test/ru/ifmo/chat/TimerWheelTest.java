@@ -0,0 +1,81 @@
+package ru.ifmo.chat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    private static final long TICK_MILLIS = 10;
+
+    /**
+     * Only 4 slots, so the timers due after a turn of the wheel are covered too.
+     */
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, 4);
+    private final Thread thread = new Thread(wheel, "timers");
+
+    @BeforeEach
+    void start() {
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        wheel.shutdown();
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @Test
+    void firesNoEarlierThanScheduled() throws InterruptedException {
+        long[] delays = {0, 5, 25, 40, 95, 230};
+        CountDownLatch fired = new CountDownLatch(delays.length);
+        List<String> early = new CopyOnWriteArrayList<>();
+        for (long delay : delays) {
+            long scheduled = System.nanoTime();
+            wheel.schedule(() -> {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+                if (elapsed < delay) early.add(delay + " ms timer fired after " + elapsed + " ms");
+                fired.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(), early);
+    }
+
+    @Test
+    void firesInOrderOfDeadlines() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(3);
+        // each a turn of the wheel or more apart, landing in the same slot
+        for (int turns : new int[]{3, 1, 2}) {
+            wheel.schedule(() -> {
+                order.add(turns);
+                fired.countDown();
+            }, turns * 4 * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+    }
+
+    @Test
+    void keepsTickingAfterFailedTask() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("task failure, expected by the test");
+        }, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(fired::countDown, 2 * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectsNonPositiveSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new TimerWheel(0, TimeUnit.MILLISECONDS, 8));
+        assertThrows(IllegalArgumentException.class, () -> new TimerWheel(10, TimeUnit.MILLISECONDS, 0));
+    }
+}